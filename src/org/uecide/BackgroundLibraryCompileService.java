@@ -30,31 +30,69 @@
 
 package org.uecide;
 
+import java.io.*;
+import java.util.*;
+
+// Compiles the libraries a sketch uses in the background so they are ready
+// by the time the sketch is compiled.  Like the tree updater it only looks
+// at an editor when its text has changed or something has changed on disk.
+
+public class BackgroundLibraryCompileService extends Service implements FileWatcher.Listener {
+
+    volatile boolean changed = true;
+    HashMap<Editor, Integer> signatures = new HashMap<Editor, Integer>();
 
-public class BackgroundLibraryCompileService extends Service {
     public BackgroundLibraryCompileService() {
         setName("Background Library Compile");
         setInterval(5000);
     }
 
-    public void setup() { }
-    public void cleanup() { }
+    public void setup() {
+        FileWatcher.addListener(this);
+    }
+
+    public void cleanup() {
+        FileWatcher.removeListener(this);
+        signatures.clear();
+        changed = true;
+    }
+
+    public void filesChanged(int type, Set<File> files) {
+        changed = true;
+    }
 
     public void loop() {
+        boolean all = changed || !FileWatcher.isAvailable();
+        changed = false;
+
+        HashMap<Editor, Integer> seen = new HashMap<Editor, Integer>();
+
         synchronized (Editor.editorList) {
             for (Editor e : Editor.editorList) {
-                if (!e.compilerRunning()) {
-                    e.loadedSketch.updateLibraryList();
-                    e.loadedSketch.generateIncludes();
-                    for (Library lib : e.loadedSketch.getImportedLibraries()) {
-                        if (!e.loadedSketch.libraryIsCompiled(lib)) {
-                            System.err.println(lib);
-                            e.loadedSketch.precompileLibrary(lib);
-                        }
+                if (e.compilerRunning()) {
+                    changed = true;
+                    continue;
+                }
+
+                Integer sig = e.getContentSignature();
+                seen.put(e, sig);
+
+                if (!all && sig.equals(signatures.get(e))) {
+                    continue;
+                }
+
+                e.loadedSketch.updateLibraryList();
+                e.loadedSketch.generateIncludes();
+                for (Library lib : e.loadedSketch.getImportedLibraries()) {
+                    if (!e.loadedSketch.libraryIsCompiled(lib)) {
+                        System.err.println(lib);
+                        e.loadedSketch.precompileLibrary(lib);
                     }
                 }
             }
         }
+
+        signatures = seen;
     }
 
 }
@@ -237,6 +237,10 @@ public class Base implements AptPercentageListener {
         cli.addParameter("port",                "name",     String.class,   "cli.help.port");
         cli.addParameter("programmer",          "name",     String.class,   "cli.help.programmer");
         cli.addParameter("purge",               "",         Boolean.class,  "cli.help.purge");
+        cli.addParameter("jobs",                "num",      Integer.class,  "cli.help.jobs");
+        cli.addParameter("server",              "",         Boolean.class,  "cli.help.server");
+        cli.addParameter("client",              "",         Boolean.class,  "cli.help.client");
+        cli.addParameter("server-port",         "port",     Integer.class,  "cli.help.server-port");
         cli.addParameter("help",                "",         Boolean.class,  "cli.help.help");
 
         cli.addParameter("update",              "",         Boolean.class,  "cli.help.update");
@@ -277,7 +281,7 @@ public class Base implements AptPercentageListener {
             System.exit(0);
         }
 
-        headless = cli.isSet("headless");
+        headless = cli.isSet("headless") || cli.isSet("server");
         boolean loadLastSketch = cli.isSet("last-sketch");
 
         boolean doExit = false;
@@ -342,6 +346,13 @@ public class Base implements AptPercentageListener {
 
         platform.setSettingsFolderEnvironmentVariable();
 
+        // Hand the build off to a build server if asked.  Only the preferences are
+        // needed for that (to find the server's token in the data folder), so do it
+        // before anything else gets loaded.
+        if (cli.isSet("client")) {
+            System.exit(BuildServer.runClient(BuildServer.getPort(), argv));
+        }
+
         if (preferences.getBoolean("network.offline")) {
             setOfflineMode();
         }
@@ -554,18 +565,11 @@ public class Base implements AptPercentageListener {
 
             Serial.updatePortList();
 
-            System.out.print(i18n.string("msg.loading.compilers"));
-            loadCompilers();
+            long defStart = System.currentTimeMillis();
+            System.out.print(i18n.string("msg.loading.definitions"));
+            loadDefinitions();
             System.out.println(i18n.string("msg.done"));
-            System.out.print(i18n.string("msg.loading.cores"));
-            loadCores();
-            System.out.println(i18n.string("cli.msg.loading.done"));
-            System.out.print(i18n.string("msg.loading.boards"));
-            loadBoards();
-            System.out.println(i18n.string("cli.msg.loading.done"));
-            System.out.print(i18n.string("msg.loading.programmers"));
-            loadProgrammers();
-            System.out.println(i18n.string("msg.loading.done"));
+            reportDefinitionLoading(defStart);
             System.out.print(i18n.string("msg.loading.libraries"));
             gatherLibraries();
             System.out.println(i18n.string("msg.loading.done"));
@@ -649,21 +653,12 @@ public class Base implements AptPercentageListener {
         if(!headless) splashScreen.setMessage(i18n.string("splash.msg.themes"), 25);
 
 
-        if(!headless) splashScreen.setMessage(i18n.string("splash.msg.compilers"), 30);
-
-        loadCompilers();
-
-        if(!headless) splashScreen.setMessage(i18n.string("splash.msg.cores"), 40);
-
-        loadCores();
-
-        if(!headless) splashScreen.setMessage(i18n.string("splash.msg.boards"), 50);
-
-        loadBoards();
+        if(!headless) splashScreen.setMessage(i18n.string("splash.msg.definitions"), 30);
 
-        if(!headless) splashScreen.setMessage(i18n.string("splash.msg.programmers"), 55);
+        long defStart = System.currentTimeMillis();
+        loadDefinitions();
 
-        loadProgrammers();
+        reportDefinitionLoading(defStart);
 
         if (cli.isSet("mkmf")) {
             for(int i = 0; i < argv.length; i++) {
@@ -718,6 +713,12 @@ public class Base implements AptPercentageListener {
 
         runInitScripts();
 
+        if (cli.isSet("server")) {
+            BuildServer server = new BuildServer(BuildServer.getPort());
+            server.run();
+            System.exit(1);
+        }
+
         initMRU();
 
         if(!headless) splashScreen.setMessage(i18n.string("splash.msg.editor"), 80);
@@ -1091,176 +1092,61 @@ public class Base implements AptPercentageListener {
         return null;
     }
 
+    // Save the definition snapshot and say how long it all took.
+    static void reportDefinitionLoading(long start) {
+        DefinitionCache dc = DefinitionCache.getCache();
+        dc.save();
+        Debug.message("Loaded hardware definitions in " + (System.currentTimeMillis() - start) + "ms");
+        Debug.message(dc.getReport());
+        dc.resetStatistics();
+    }
+
+    /*! Load all the compilers, cores, boards and programmers at once.  See DefinitionLoader. */
+    public static void loadDefinitions() {
+        DefinitionLoader.loadAll();
+    }
+
     /*! Load all the compilers into the main compilers list */
     public static void loadCompilers() {
         compilers.clear();
-        File[] files = getCompilersFolders();
-        for (File file : files) {
-            loadCompilersFromFolder(file);
-        }
+        compilers.putAll(DefinitionLoader.load(getCompilersFolders(), DefinitionLoader.COMPILERS));
     }
 
     /*! Load any compilers found in the specified folder */
     public static void loadCompilersFromFolder(File folder) {
-        if(folder == null) {
-            return;
-        }
-
-        if(!folder.exists()) {
-            return;
-        }
-
-        if(!folder.isDirectory())
-            return;
-
-        String cl[] = folder.list();
-
-        Debug.message("Loading compilers from " + folder.getAbsolutePath());
-
-        for(int i = 0; i < cl.length; i++) {
-            if(cl[i].charAt(0) == '.')
-                continue;
-
-            File cdir = new File(folder, cl[i]);
-
-            if(cdir.isDirectory()) {
-                File cfile = new File(cdir, "compiler.txt");
-
-                if(cfile.exists()) {
-                    Debug.message("    Loading compiler " + cfile.getAbsolutePath());
-                    Compiler newCompiler = new Compiler(cdir);
-
-                    if(newCompiler.isValid()) {
-                        compilers.put(newCompiler.getName(), newCompiler);
-                    } else {    
-                        Debug.message("    ==> IS NOT VALID!!!");
-                    }
-                }
-            }
-        }
+        compilers.putAll(DefinitionLoader.load(new File[] { folder }, DefinitionLoader.COMPILERS));
     }
 
     /*! Load all the cores into the main cores list */
     public static void loadCores() {
         cores.clear();
-        File[] files = getCoresFolders();
-        for(File file : files) {
-            loadCoresFromFolder(file);
-        }
+        cores.putAll(DefinitionLoader.load(getCoresFolders(), DefinitionLoader.CORES));
     }
 
     /*! Load any cores found in the specified folder */
     public static void loadCoresFromFolder(File folder) {
-        if(!folder.isDirectory())
-            return;
-
-        String cl[] = folder.list();
-        Debug.message("Loading cores from " + folder.getAbsolutePath());
-
-        for(int i = 0; i < cl.length; i++) {
-            if(cl[i].charAt(0) == '.')
-                continue;
-
-            File cdir = new File(folder, cl[i]);
-
-            if(cdir.isDirectory()) {
-                File cfile = new File(cdir, "core.txt");
-
-                if(cfile.exists()) {
-                    Debug.message("    Loading core " + cfile.getAbsolutePath());
-                    Core newCore = new Core(cdir);
-
-                    if(newCore.isValid()) {
-                        cores.put(newCore.getName(), newCore);
-                    } else {    
-                        Debug.message("    ==> IS NOT VALID!!!");
-                    }
-                }
-            }
-        }
+        cores.putAll(DefinitionLoader.load(new File[] { folder }, DefinitionLoader.CORES));
     }
 
     public static void loadProgrammers() {
         programmers.clear();
-        File[] files = getProgrammersFolders();
-        for (File file : files) {
-            loadProgrammersFromFolder(file);
-        }
+        programmers.putAll(DefinitionLoader.load(getProgrammersFolders(), DefinitionLoader.PROGRAMMERS));
     }
 
     /*! Load any programmers found in the specified folder */
     public static void loadProgrammersFromFolder(File folder) {
-        String bl[] = folder.list();
-
-        if(bl == null) {
-            return;
-        }
-
-        Debug.message("Loading programmers from " + folder.getAbsolutePath());
-
-        for(int i = 0; i < bl.length; i++) {
-            if(bl[i].charAt(0) == '.')
-                continue;
-
-            File bdir = new File(folder, bl[i]);
-
-            if(bdir.isDirectory()) {
-                File bfile = new File(bdir, "programmer.txt");
-
-                if(bfile.exists()) {
-                    Debug.message("    Loading programmer " + bfile.getAbsolutePath());
-                    Programmer newProgrammer = new Programmer(bdir);
-
-                    if(newProgrammer.isValid()) {
-                        programmers.put(newProgrammer.getName(), newProgrammer);
-                    }
-                } else {
-                    loadProgrammersFromFolder(bdir);
-                }
-            }
-        }
+        programmers.putAll(DefinitionLoader.load(new File[] { folder }, DefinitionLoader.PROGRAMMERS));
     }
 
     /*! Load all the boards into the main boards list */
     public static void loadBoards() {
         boards.clear();
-        File[] files = getBoardsFolders();
-        for (File file : files) {
-            loadBoardsFromFolder(file);
-        }
+        boards.putAll(DefinitionLoader.load(getBoardsFolders(), DefinitionLoader.BOARDS));
     }
 
     /*! Load any boards found in the specified folder */
     public static void loadBoardsFromFolder(File folder) {
-        String bl[] = folder.list();
-
-        if(bl == null) {
-            return;
-        }
-
-        Debug.message("Loading boards from " + folder.getAbsolutePath());
-
-        for(int i = 0; i < bl.length; i++) {
-            if(bl[i].charAt(0) == '.')
-                continue;
-
-            File bdir = new File(folder, bl[i]);
-
-            if(bdir.isDirectory()) {
-                File bfile = new File(bdir, "board.txt");
-
-                if(bfile.exists()) {
-                    Debug.message("    Loading board " + bfile.getAbsolutePath());
-                    Board newBoard = new Board(bdir);
-
-                    if(newBoard.isValid()) {
-                        boards.put(newBoard.getName(), newBoard);
-                    }
-                } else {
-                    loadBoardsFromFolder(bdir);
-                }
-            }
-        }
+        boards.putAll(DefinitionLoader.load(new File[] { folder }, DefinitionLoader.BOARDS));
     }
 
 //    boolean breakTime = false;
@@ -2417,17 +2303,20 @@ public class Base implements AptPercentageListener {
     public static void rescanCompilers() {
         compilers = new TreeMap<String, Compiler>();
         loadCompilers();
+        DefinitionCache.getCache().save();
     }
 
     public static void rescanCores() {
         cores = new TreeMap<String, Core>();
         loadCores();
+        DefinitionCache.getCache().save();
     }
 
     public static void rescanProgrammers() {
         try {
             programmers = new TreeMap<String, Programmer>();
             loadProgrammers();
+            DefinitionCache.getCache().save();
             Editor.updateAllEditors();
             Editor.selectAllEditorProgrammers();
         } catch(Exception e) {
@@ -2439,6 +2328,7 @@ public class Base implements AptPercentageListener {
         try {
             boards = new TreeMap<String, Board>();
             loadBoards();
+            DefinitionCache.getCache().save();
             Editor.updateAllEditors();
             Editor.selectAllEditorBoards();
         } catch(Exception e) {
@@ -3120,18 +3010,12 @@ public class Base implements AptPercentageListener {
     public static Object executeJavaScript(String resource, String function, Object[] args) {
         Object ret = null;
         try {
-            ScriptEngineManager manager = new ScriptEngineManager();
-            ScriptEngine engine = manager.getEngineByName("JavaScript");
-
             String script = getResourceAsString(resource);
 
             if (script == null) { return null; }
             if (script.equals("")) { return null; }
 
-            engine.eval(script);
-
-            Invocable inv = (Invocable)engine;
-            ret = inv.invokeFunction(function, args);
+            ret = ScriptEngines.invoke(script, null, function, args);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// A graph of build steps.  Each node is only started once all the nodes it depends
+// on have finished successfully, and any nodes that don't depend on each other are
+// run at the same time on a fixed pool of threads.  If a node fails nothing new is
+// started and the build stops once the nodes already running have finished.
+//
+// The pool holds the whole job budget for the build.  A node that wants to split
+// its own work up (the sketch compiling its files) hands the extra work to the
+// pool from getExecutor() rather than starting threads of its own.
+//
+// Each node carries a weight (roughly the number of files it has to compile) which
+// is used to report how far through the build we are.
+
+public class BuildGraph {
+
+    public static abstract class Node {
+        String name;
+        int weight;
+        boolean success = false;
+        int waiting = 0;
+        ArrayList<Node> depends = new ArrayList<Node>();
+        ArrayList<Node> dependents = new ArrayList<Node>();
+
+        public Node(String n, int w) {
+            name = n;
+            weight = w < 1 ? 1 : w;
+        }
+
+        public String getName() { return name; }
+        public int getWeight() { return weight; }
+
+        public void dependsOn(Node n) {
+            if (n == null) {
+                return;
+            }
+            depends.add(n);
+            n.dependents.add(this);
+        }
+
+        // Do the work of the node.  Return false if it failed.
+        public abstract boolean build();
+    }
+
+    public static interface ProgressListener {
+        public void buildProgress(int done, int total);
+    }
+
+    ArrayList<Node> nodes = new ArrayList<Node>();
+    ProgressListener progressListener = null;
+    int jobs = 1;
+    volatile ExecutorService pool = null;
+
+    public BuildGraph(int j) {
+        jobs = j < 1 ? 1 : j;
+    }
+
+    public Node addNode(Node n) {
+        nodes.add(n);
+        return n;
+    }
+
+    public void setProgressListener(ProgressListener l) {
+        progressListener = l;
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    // The pool the nodes are running on, or null if the graph isn't being built.
+    // Anything run on it must not wait for other work on the pool, or with only
+    // one job it would wait forever.
+
+    public Executor getExecutor() {
+        return pool;
+    }
+
+    public int getTotalWeight() {
+        int total = 0;
+        for (Node n : nodes) {
+            total += n.weight;
+        }
+        return total;
+    }
+
+    // Run all the nodes in the graph.  Returns true if every node was built.
+
+    public boolean build() {
+        if (nodes.size() == 0) {
+            return true;
+        }
+
+        int total = getTotalWeight();
+        int done = 0;
+        int finished = 0;
+        int outstanding = 0;
+        boolean ok = true;
+
+        pool = Executors.newFixedThreadPool(jobs);
+        CompletionService<Node> running = new ExecutorCompletionService<Node>(pool);
+
+        for (Node n : nodes) {
+            n.success = false;
+            n.waiting = n.depends.size();
+        }
+
+        for (Node n : nodes) {
+            if (n.waiting == 0) {
+                submit(running, n);
+                outstanding++;
+            }
+        }
+
+        try {
+            while (outstanding > 0) {
+                Node n = null;
+                try {
+                    n = running.take().get();
+                } catch (ExecutionException e) {
+                    Base.error(e.getCause());
+                    ok = false;
+                }
+                outstanding--;
+
+                if (n == null || !n.success) {
+                    ok = false;
+                    continue;
+                }
+
+                finished++;
+                done += n.weight;
+                if (progressListener != null) {
+                    progressListener.buildProgress(done, total);
+                }
+
+                if (!ok) {
+                    continue;
+                }
+
+                for (Node d : n.dependents) {
+                    d.waiting--;
+                    if (d.waiting == 0) {
+                        submit(running, d);
+                        outstanding++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            ok = false;
+        } finally {
+            pool.shutdownNow();
+            pool = null;
+        }
+
+        // Anything left over was part of a dependency loop
+        if (ok && finished < nodes.size()) {
+            Debug.message("Build graph has unresolvable dependencies");
+            ok = false;
+        }
+
+        return ok;
+    }
+
+    void submit(CompletionService<Node> running, final Node n) {
+        running.submit(new Callable<Node>() {
+            public Node call() {
+                n.success = n.build();
+                return n;
+            }
+        });
+    }
+}
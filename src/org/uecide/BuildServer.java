@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+
+// A long running build server.  Starting UECIDE with --server loads all the
+// compilers, cores, boards, programmers and libraries once, then sits waiting
+// for build requests on a local socket.  Running UECIDE with --client sends the
+// sketch and the build options to the server instead of loading everything itself,
+// then prints whatever the build outputs and exits with the build's exit status.
+//
+// The socket is only ever bound to the loopback interface.  Since anyone on the
+// machine can connect to that, each time the server starts it makes a random token
+// and writes it to server.token in the data folder, readable only by the user.
+// A request has to start with that token or it is thrown away.
+//
+// The request is a block of text lines of the form "key value" ending with "go":
+//
+//   UECIDE-BUILD 1 <token>
+//   board <name>       (also core, compiler, programmer and port)
+//   flag <name>        (clean, purge or upload)
+//   sketch <path>
+//   go
+//
+// The reply is a stream of frames, each a type byte, a 32 bit length and the data.
+// Type 'O' is standard output, 'E' is standard error and 'X' is the end of the
+// build, with the exit status as its data.
+
+public class BuildServer {
+
+    public static final int DEFAULT_PORT = 6789;
+    static final String MAGIC = "UECIDE-BUILD 1";
+
+    static final String TOKEN_FILE = "server.token";
+
+    // A client has this long to send its whole request, and no line of it may be
+    // longer than MAX_LINE bytes.
+    static final int REQUEST_TIMEOUT = 10000;
+    static final int MAX_LINE = 8192;
+
+    final Object buildLock = new Object();
+
+    int port;
+    String token = null;
+
+    public BuildServer(int p) {
+        port = p;
+    }
+
+    public static int getPort() {
+        if (Base.cli.isSet("server-port")) {
+            return Base.cli.getInteger("server-port");
+        }
+        return DEFAULT_PORT;
+    }
+
+    // Run the server.  This never returns unless the socket can't be opened.
+    // Each connection is read in its own thread so a client that never sends
+    // anything can't hold up the others.  Builds are still done one at a time,
+    // since each one takes over System.out and System.err while it runs.
+
+    public void run() {
+        try {
+            token = createToken();
+        } catch (Exception e) {
+            System.err.println(Base.i18n.string("err.server.token", getTokenFile().getAbsolutePath(), e.getMessage()));
+            return;
+        }
+
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        } catch (Exception e) {
+            System.err.println(Base.i18n.string("err.server.listen", Integer.toString(port), e.getMessage()));
+            return;
+        }
+
+        System.out.println(Base.i18n.string("msg.server.listening", Integer.toString(port)));
+
+        while (true) {
+            try {
+                final Socket client = server.accept();
+                Thread t = new Thread("Build request") {
+                    public void run() {
+                        try {
+                            handleRequest(client);
+                        } catch (SocketTimeoutException e) {
+                            Debug.message("Build request timed out");
+                        } catch (Exception e) {
+                            Debug.message("Build request failed: " + e.getMessage());
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (Exception ex) {
+                            }
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            } catch (Exception e) {
+                Base.error(e);
+            }
+        }
+    }
+
+    void handleRequest(Socket client) throws IOException {
+        client.setSoTimeout(REQUEST_TIMEOUT);
+        InputStream in = new BufferedInputStream(client.getInputStream());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+        String line = readLine(in);
+        if (line == null || !line.startsWith(MAGIC + " ")) {
+            return;
+        }
+        byte[] given = line.substring(MAGIC.length() + 1).getBytes("UTF-8");
+        if (!MessageDigest.isEqual(given, token.getBytes("UTF-8"))) {
+            Debug.message("Build request with a bad token refused");
+            return;
+        }
+
+        HashMap<String, String> options = new HashMap<String, String>();
+        HashSet<String> flags = new HashSet<String>();
+        ArrayList<String> sketches = new ArrayList<String>();
+
+        boolean go = false;
+        while ((line = readLine(in)) != null) {
+            if (line.equals("go")) {
+                go = true;
+                break;
+            }
+            int sp = line.indexOf(" ");
+            if (sp == -1) {
+                continue;
+            }
+            String key = line.substring(0, sp);
+            String value = line.substring(sp + 1);
+            if (key.equals("flag")) {
+                flags.add(value);
+            } else if (key.equals("sketch")) {
+                sketches.add(value);
+            } else {
+                options.put(key, value);
+            }
+        }
+
+        if (!go) {
+            return;
+        }
+
+        client.setSoTimeout(0);
+        synchronized (buildLock) {
+            runBuild(out, options, flags, sketches);
+        }
+    }
+
+    // Read one line of the request.  Returns null at the end of the stream, and
+    // gives up on lines that are too long rather than reading them forever.
+
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                String l = line.toString("UTF-8");
+                return l.endsWith("\r") ? l.substring(0, l.length() - 1) : l;
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("Request line too long");
+            }
+            line.write(c);
+        }
+        if (line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+
+    void runBuild(DataOutputStream out, HashMap<String, String> options, HashSet<String> flags, ArrayList<String> sketches) throws IOException {
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        PrintStream newOut = new PrintStream(new FrameOutputStream(out, 'O'), true, "UTF-8");
+        PrintStream newErr = new PrintStream(new FrameOutputStream(out, 'E'), true, "UTF-8");
+
+        int status = 0;
+        long start = System.currentTimeMillis();
+
+        System.setOut(newOut);
+        System.setErr(newErr);
+        try {
+            for (String path : sketches) {
+                status = build(new File(path), options, flags);
+                if (status != 0) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            newOut.flush();
+            newErr.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+
+        Debug.message("Build request finished with status " + status + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        synchronized (out) {
+            out.writeByte('X');
+            out.writeInt(4);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    static File getTokenFile() {
+        return Base.getDataFile(TOKEN_FILE);
+    }
+
+    // Make a new random token and write it to the token file.  The file is made
+    // readable by the user only before anything is written to it.
+
+    static String createToken() throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        String t = sb.toString();
+
+        File f = getTokenFile();
+        f.delete();
+        Path path = f.toPath();
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+
+        OutputStream out = new FileOutputStream(f);
+        out.write(t.getBytes("UTF-8"));
+        out.close();
+        return t;
+    }
+
+    static String readToken() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(getTokenFile()), "UTF-8"));
+        String t = in.readLine();
+        in.close();
+        if (t == null) {
+            throw new IOException(Base.i18n.string("err.server.notoken"));
+        }
+        return t.trim();
+    }
+
+    // Build a sketch the same way a headless --compile or --upload would.
+
+    int build(File path, HashMap<String, String> options, HashSet<String> flags) {
+        if (!path.exists()) {
+            System.err.println(Base.i18n.string("err.notfound", path.getAbsolutePath()));
+            return 1;
+        }
+
+        Sketch s = new Sketch(path);
+        s.loadConfig();
+
+        if (options.get("port") != null) {
+            s.setDevice(options.get("port"));
+        }
+        if (options.get("board") != null) {
+            s.setBoard(options.get("board"));
+        }
+        if (options.get("core") != null) {
+            s.setCore(options.get("core"));
+        }
+        if (options.get("compiler") != null) {
+            s.setCompiler(options.get("compiler"));
+        }
+        if (options.get("programmer") != null) {
+            s.setProgrammer(options.get("programmer"));
+        }
+
+        if (flags.contains("purge")) {
+            s.purgeCache();
+        }
+        if (flags.contains("clean")) {
+            s.purgeBuildFiles();
+        }
+
+        if (!s.build()) {
+            return 10;
+        }
+
+        if (flags.contains("upload")) {
+            if (!s.upload()) {
+                return 10;
+            }
+        }
+        return 0;
+    }
+
+    // Send a build request to a running server and pass its output through to ours.
+    // Returns the exit status of the build.
+
+    public static int runClient(int port, String[] sketches) {
+        String t = null;
+        try {
+            t = readToken();
+        } catch (Exception e) {
+            System.err.println(Base.i18n.string("err.server.token", getTokenFile().getAbsolutePath(), e.getMessage()));
+            return 1;
+        }
+
+        Socket sock = null;
+        try {
+            sock = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (Exception e) {
+            System.err.println(Base.i18n.string("err.server.connect", Integer.toString(port), e.getMessage()));
+            return 1;
+        }
+
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+            out.print(MAGIC + " " + t + "\n");
+            sendOption(out, "board", Base.presetBoard);
+            sendOption(out, "core", Base.presetCore);
+            sendOption(out, "compiler", Base.presetCompiler);
+            sendOption(out, "programmer", Base.presetProgrammer);
+            sendOption(out, "port", Base.presetPort);
+            if (Base.cleanBuild) { sendOption(out, "flag", "clean"); }
+            if (Base.purgeCache) { sendOption(out, "flag", "purge"); }
+            if (Base.autoProgram) { sendOption(out, "flag", "upload"); }
+
+            for (String path : sketches) {
+                if (path.equals(".")) {
+                    path = System.getProperty("user.dir");
+                }
+                sendOption(out, "sketch", new File(path).getAbsolutePath());
+            }
+            out.print("go\n");
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            while (true) {
+                int type = in.readByte();
+                int len = in.readInt();
+                byte[] data = new byte[len];
+                in.readFully(data);
+                if (type == 'O') {
+                    System.out.write(data);
+                    System.out.flush();
+                } else if (type == 'E') {
+                    System.err.write(data);
+                    System.err.flush();
+                } else if (type == 'X') {
+                    return new DataInputStream(new ByteArrayInputStream(data)).readInt();
+                }
+            }
+        } catch (EOFException e) {
+            System.err.println(Base.i18n.string("err.server.closed"));
+            return 1;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } finally {
+            try {
+                sock.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    static void sendOption(PrintWriter out, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        out.print(key + " " + value + "\n");
+    }
+
+    // Wraps everything written to it in a frame of the given type.
+
+    static class FrameOutputStream extends OutputStream {
+        DataOutputStream out;
+        int type;
+
+        FrameOutputStream(DataOutputStream o, int t) {
+            out = o;
+            type = t;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+}
@@ -30,19 +30,81 @@
 
 package org.uecide;
 
-public class ChangedFileService extends Service {
+import java.io.*;
+import java.util.*;
+
+// Looks for files open in the editors that have been changed on disk.  When
+// the file watcher is available the sketch folders are watched and nothing
+// is looked at until something in one of them changes.  Otherwise it falls
+// back to checking every file each time round.
+
+public class ChangedFileService extends Service implements FileWatcher.Listener {
+
+    volatile boolean changed = true;
+    HashSet<File> watchedFolders = new HashSet<File>();
+
     public ChangedFileService() {
         setName("Changed Files");
         setInterval(1000);
     }
 
     public void setup() {
+        FileWatcher.addListener(this);
     }
 
     public void cleanup() {
+        FileWatcher.removeListener(this);
+        for (File f : watchedFolders) {
+            FileWatcher.unwatch(f);
+        }
+        watchedFolders.clear();
+        changed = true;
+    }
+
+    public void filesChanged(int type, Set<File> files) {
+        if (type == FileWatcher.SKETCH) {
+            changed = true;
+        }
+    }
+
+    // Keep the set of watched folders in step with the sketches that are open.
+    void updateWatchedFolders() {
+        HashSet<File> open = new HashSet<File>();
+        synchronized (Editor.editorList) {
+            for (Editor ed : Editor.editorList) {
+                if (ed.loadedSketch != null && ed.loadedSketch.getFolder() != null) {
+                    open.add(ed.loadedSketch.getFolder());
+                }
+            }
+        }
+
+        for (File f : open) {
+            if (!watchedFolders.contains(f)) {
+                FileWatcher.watch(f, FileWatcher.SKETCH, 1);
+                watchedFolders.add(f);
+                changed = true;
+            }
+        }
+
+        Iterator<File> it = watchedFolders.iterator();
+        while (it.hasNext()) {
+            File f = it.next();
+            if (!open.contains(f)) {
+                FileWatcher.unwatch(f);
+                it.remove();
+            }
+        }
     }
 
     public void loop() {
+        if (FileWatcher.isAvailable()) {
+            updateWatchedFolders();
+            if (!changed) {
+                return;
+            }
+            changed = false;
+        }
+
         for (Editor ed : Editor.editorList) {
             if (!ed.compilerRunning()) {
                 int tabs = ed.getTabCount();
@@ -60,6 +122,9 @@ public class ChangedFileService extends Service {
                     }
                 }
                 ed.updateSketchConfig();
+            } else {
+                // Come back to it once the compile has finished.
+                changed = true;
             }
         }
     }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.uecide.builtin.*;
+import org.uecide.varcmd.*;
+
+// Lookup table for the ${cmd:param} variable commands and the __builtin_ script
+// commands.  Rather than find the class by name and poke it with reflection every
+// time a command is used, each one is registered here once.  Variable commands
+// hold no state, so a single instance is shared.  Builtins can hold state (ports,
+// connections and the like) so a factory is stored and each run gets a fresh one.
+//
+// Plugins can add their own commands with registerVariableCommand and
+// registerBuiltinCommand.  Anything not registered is looked for by class name
+// (org.uecide.varcmd.vc_<name> or org.uecide.builtin.<name>) the first time it is
+// used, so jars added with __builtin_loadjar still work, and the result is stored
+// so the lookup only ever happens once.
+
+public class CommandRegistry {
+
+    public static interface BuiltinFactory {
+        public BuiltinCommand create();
+    }
+
+    static ConcurrentHashMap<String, VariableCommand> variableCommands = new ConcurrentHashMap<String, VariableCommand>();
+    static ConcurrentHashMap<String, BuiltinFactory> builtinCommands = new ConcurrentHashMap<String, BuiltinFactory>();
+
+    // Builtins run in their own thread so that they can be killed.  The threads are
+    // kept in a pool rather than started afresh each time.  The pool is allowed to
+    // grow since a builtin may well run other builtins and wait for them.
+    static ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Builtin command " + (count++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        registerVariableCommand("arduino", new vc_arduino());
+        registerVariableCommand("basename", new vc_basename());
+        registerVariableCommand("board", new vc_board());
+        registerVariableCommand("char", new vc_char());
+        registerVariableCommand("compiler", new vc_compiler());
+        registerVariableCommand("core", new vc_core());
+        registerVariableCommand("env", new vc_env());
+        registerVariableCommand("exec", new vc_exec());
+        registerVariableCommand("files", new vc_files());
+        registerVariableCommand("find", new vc_find());
+        registerVariableCommand("foreach", new vc_foreach());
+        registerVariableCommand("if", new vc_if());
+        registerVariableCommand("java", new vc_java());
+        registerVariableCommand("join", new vc_join());
+        registerVariableCommand("math", new vc_math());
+        registerVariableCommand("option", new vc_option());
+        registerVariableCommand("os", new vc_os());
+        registerVariableCommand("port", new vc_port());
+        registerVariableCommand("prefs", new vc_prefs());
+        registerVariableCommand("preproc", new vc_preproc());
+        registerVariableCommand("programmer", new vc_programmer());
+        registerVariableCommand("random", new vc_random());
+        registerVariableCommand("replace", new vc_replace());
+        registerVariableCommand("select", new vc_select());
+        registerVariableCommand("sketch", new vc_sketch());
+        registerVariableCommand("system", new vc_system());
+        registerVariableCommand("theme", new vc_theme());
+        registerVariableCommand("uecide", new vc_uecide());
+
+        registerBuiltinCommand("append", new BuiltinFactory() { public BuiltinCommand create() { return new append(); } });
+        registerBuiltinCommand("bullet", new BuiltinFactory() { public BuiltinCommand create() { return new bullet(); } });
+        registerBuiltinCommand("bullet2", new BuiltinFactory() { public BuiltinCommand create() { return new bullet2(); } });
+        registerBuiltinCommand("bullet3", new BuiltinFactory() { public BuiltinCommand create() { return new bullet3(); } });
+        registerBuiltinCommand("cout", new BuiltinFactory() { public BuiltinCommand create() { return new cout(); } });
+        registerBuiltinCommand("cp", new BuiltinFactory() { public BuiltinCommand create() { return new cp(); } });
+        registerBuiltinCommand("delay", new BuiltinFactory() { public BuiltinCommand create() { return new delay(); } });
+        registerBuiltinCommand("dot", new BuiltinFactory() { public BuiltinCommand create() { return new dot(); } });
+        registerBuiltinCommand("echo", new BuiltinFactory() { public BuiltinCommand create() { return new echo(); } });
+        registerBuiltinCommand("ecma", new BuiltinFactory() { public BuiltinCommand create() { return new ecma(); } });
+        registerBuiltinCommand("end_buffer", new BuiltinFactory() { public BuiltinCommand create() { return new end_buffer(); } });
+        registerBuiltinCommand("error", new BuiltinFactory() { public BuiltinCommand create() { return new error(); } });
+        registerBuiltinCommand("exec", new BuiltinFactory() { public BuiltinCommand create() { return new exec(); } });
+        registerBuiltinCommand("foreach", new BuiltinFactory() { public BuiltinCommand create() { return new foreach(); } });
+        registerBuiltinCommand("gpio", new BuiltinFactory() { public BuiltinCommand create() { return new gpio(); } });
+        registerBuiltinCommand("loadjar", new BuiltinFactory() { public BuiltinCommand create() { return new loadjar(); } });
+        registerBuiltinCommand("lock_port", new BuiltinFactory() { public BuiltinCommand create() { return new lock_port(); } });
+        registerBuiltinCommand("merge_hex", new BuiltinFactory() { public BuiltinCommand create() { return new merge_hex(); } });
+        registerBuiltinCommand("port", new BuiltinFactory() { public BuiltinCommand create() { return new port(); } });
+        registerBuiltinCommand("push", new BuiltinFactory() { public BuiltinCommand create() { return new push(); } });
+        registerBuiltinCommand("scp", new BuiltinFactory() { public BuiltinCommand create() { return new scp(); } });
+        registerBuiltinCommand("set", new BuiltinFactory() { public BuiltinCommand create() { return new set(); } });
+        registerBuiltinCommand("spin", new BuiltinFactory() { public BuiltinCommand create() { return new spin(); } });
+        registerBuiltinCommand("ssh", new BuiltinFactory() { public BuiltinCommand create() { return new ssh(); } });
+        registerBuiltinCommand("start_buffer", new BuiltinFactory() { public BuiltinCommand create() { return new start_buffer(); } });
+        registerBuiltinCommand("stdin", new BuiltinFactory() { public BuiltinCommand create() { return new stdin(); } });
+        registerBuiltinCommand("stk500v1", new BuiltinFactory() { public BuiltinCommand create() { return new stk500v1(); } });
+        registerBuiltinCommand("stk500v2", new BuiltinFactory() { public BuiltinCommand create() { return new stk500v2(); } });
+        registerBuiltinCommand("unlock_port", new BuiltinFactory() { public BuiltinCommand create() { return new unlock_port(); } });
+        registerBuiltinCommand("warning", new BuiltinFactory() { public BuiltinCommand create() { return new warning(); } });
+        registerBuiltinCommand("write", new BuiltinFactory() { public BuiltinCommand create() { return new write(); } });
+    }
+
+    public static void registerVariableCommand(String name, VariableCommand command) {
+        variableCommands.put(name, command);
+    }
+
+    public static void registerBuiltinCommand(String name, BuiltinFactory factory) {
+        builtinCommands.put(name, factory);
+    }
+
+    public static void registerBuiltinCommand(String name, final Class<? extends BuiltinCommand> c) {
+        registerBuiltinCommand(name, new BuiltinFactory() {
+            public BuiltinCommand create() {
+                try {
+                    return c.getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    Base.error(e);
+                }
+                return null;
+            }
+        });
+    }
+
+    public static VariableCommand getVariableCommand(String name) {
+        VariableCommand vc = variableCommands.get(name);
+        if (vc != null) {
+            return vc;
+        }
+
+        try {
+            Class<?> c = Class.forName("org.uecide.varcmd.vc_" + name);
+            if (!VariableCommand.class.isAssignableFrom(c)) {
+                return null;
+            }
+            vc = (VariableCommand)c.getDeclaredConstructor().newInstance();
+            VariableCommand prev = variableCommands.putIfAbsent(name, vc);
+            return prev != null ? prev : vc;
+        } catch (ClassNotFoundException e) {
+        } catch (ReflectiveOperationException e) {
+            Base.error(e);
+        }
+        return null;
+    }
+
+    public static BuiltinCommand createBuiltinCommand(String name) {
+        BuiltinFactory f = builtinCommands.get(name);
+        if (f == null) {
+            try {
+                Class<?> c = Class.forName("org.uecide.builtin." + name);
+                if (!BuiltinCommand.class.isAssignableFrom(c)) {
+                    return null;
+                }
+                registerBuiltinCommand(name, c.asSubclass(BuiltinCommand.class));
+                f = builtinCommands.get(name);
+            } catch (ClassNotFoundException e) {
+                return null;
+            } catch (Exception e) {
+                Base.error(e);
+                return null;
+            }
+        }
+        return f.create();
+    }
+
+    public static boolean isVariableCommand(String name) {
+        return getVariableCommand(name) != null;
+    }
+
+    public static boolean isBuiltinCommand(String name) {
+        return builtinCommands.containsKey(name);
+    }
+
+    public static Set<String> getVariableCommandNames() {
+        return new TreeSet<String>(variableCommands.keySet());
+    }
+
+    public static Set<String> getBuiltinCommandNames() {
+        return new TreeSet<String>(builtinCommands.keySet());
+    }
+
+    public static Future<Object> submit(Callable<Object> task) {
+        return executor.submit(task);
+    }
+}
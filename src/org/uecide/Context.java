@@ -33,11 +33,11 @@ package org.uecide;
 import java.io.*;
 import java.lang.*;
 import java.util.*;
-import java.lang.reflect.*;
 
 import javax.script.*;
 
 import java.util.regex.*;
+import java.util.concurrent.*;
 
 import org.uecide.builtin.BuiltinCommand;
 import org.uecide.varcmd.VariableCommand;
@@ -66,7 +66,21 @@ public class Context {
     PropertyFile sketchSettings = null;
 
     Process runningProcess = null;
-    ThreadRet runningThread = null;
+
+    // The builtins running in this context, innermost last.  A builtin can run
+    // other builtins, so there may be more than one.  Once they have been killed
+    // no more are started until the outermost one has finished.
+    static class RunningBuiltin {
+        BuiltinCommand command;
+        Future<Object> future = null;
+
+        RunningBuiltin(BuiltinCommand c) {
+            command = c;
+        }
+    }
+
+    ArrayList<RunningBuiltin> runningBuiltins = new ArrayList<RunningBuiltin>();
+    boolean builtinsKilled = false;
 
     PropertyFile savedSettings = null;
 
@@ -81,8 +95,23 @@ public class Context {
         sketchSettings = new PropertyFile();
     }
 
-    class ThreadRet extends Thread {
-        public Object retval;
+    // Make a new context based on an existing one.  The objects and sketch settings
+    // are shared, but the local settings are copied so the new context can be given
+    // its own variables (source.name, object.name, etc) without upsetting the original.
+    // This is what the parallel compile workers run in.
+
+    public Context(Context src) {
+        board = src.board;
+        core = src.core;
+        compiler = src.compiler;
+        programmer = src.programmer;
+        sketch = src.sketch;
+        editor = src.editor;
+        port = src.port;
+        listener = src.listener;
+        silence = src.silence;
+        sketchSettings = src.sketchSettings;
+        settings = new PropertyFile(src.settings);
     }
 
     // At least one of these should be called to configure the context:
@@ -128,28 +157,121 @@ public class Context {
         settings.mergeData(pf);
     }
 
-    // Utility function to merge all the property files together in order.
+    // The property files are layered in this order, with later layers overriding
+    // earlier ones: programmer, compiler, core, board, sketch settings, settings.
+
+    PropertyFile[] getLayers() {
+        PropertyFile[] layers = new PropertyFile[6];
+        layers[0] = programmer == null ? null : programmer.getProperties();
+        layers[1] = compiler == null ? null : compiler.getProperties();
+        layers[2] = core == null ? null : core.getProperties();
+        layers[3] = board == null ? null : board.getProperties();
+        layers[4] = sketchSettings;
+        layers[5] = settings;
+        return layers;
+    }
+
+    // The merged copy of all the layers is kept, along with the version of each
+    // layer it was made from.  It only gets rebuilt when a layer is swapped or
+    // changed.  Don't modify the PropertyFile you get back from getMerged() - it's
+    // shared.
+
+    PropertyFile mergedCache = null;
+    PropertyFile[] mergedLayers = null;
+    long[] mergedVersions = null;
+    long mergedCacheVersion = 0;
+
+    // Utility function to merge all the property files together in order.  Only
+    // use this if you need to search or iterate over the properties - to just look
+    // up a value use getMerged(key) which doesn't need the merged copy.
+
+    public synchronized PropertyFile getMerged() {
+        PropertyFile[] layers = getLayers();
+
+        if (mergedCache != null && mergedCache.getVersion() == mergedCacheVersion) {
+            boolean valid = true;
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i] != mergedLayers[i]) {
+                    valid = false;
+                    break;
+                }
+                if (layers[i] != null && layers[i].getVersion() != mergedVersions[i]) {
+                    valid = false;
+                    break;
+                }
+            }
+            if (valid) {
+                return mergedCache;
+            }
+        }
 
-    public PropertyFile getMerged() {
+        long[] versions = new long[layers.length];
         PropertyFile pf = new PropertyFile();
-        if (programmer != null) { pf.mergeData(programmer.getProperties()); }
-        if (compiler != null) { pf.mergeData(compiler.getProperties()); }
-        if (core != null) { pf.mergeData(core.getProperties()); }
-        if (board != null) { pf.mergeData(board.getProperties()); }
-        pf.mergeData(sketchSettings);
-        pf.mergeData(settings);
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i] != null) {
+                versions[i] = layers[i].getVersion();
+                pf.mergeData(layers[i]);
+            }
+        }
+
+        mergedCache = pf;
+        mergedLayers = layers;
+        mergedVersions = versions;
+        mergedCacheVersion = pf.getVersion();
         return pf;
     }
 
+    // Look up a key through all the layers, top down, without merging anything.
+
     public String getMerged(String k) {
-        PropertyFile pf = new PropertyFile();
-        if (programmer != null) { pf.mergeData(programmer.getProperties()); }
-        if (compiler != null) { pf.mergeData(compiler.getProperties()); }
-        if (core != null) { pf.mergeData(core.getProperties()); }
-        if (board != null) { pf.mergeData(board.getProperties()); }
-        pf.mergeData(sketchSettings);
-        pf.mergeData(settings);
-        return pf.get(k);
+        String v = getLayerValue(settings, k);
+        if (v != null) { return v; }
+        v = getLayerValue(sketchSettings, k);
+        if (v != null) { return v; }
+        if (board != null) {
+            v = getLayerValue(board.getProperties(), k);
+            if (v != null) { return v; }
+        }
+        if (core != null) {
+            v = getLayerValue(core.getProperties(), k);
+            if (v != null) { return v; }
+        }
+        if (compiler != null) {
+            v = getLayerValue(compiler.getProperties(), k);
+            if (v != null) { return v; }
+        }
+        if (programmer != null) {
+            v = getLayerValue(programmer.getProperties(), k);
+            if (v != null) { return v; }
+        }
+        return null;
+    }
+
+    String getLayerValue(PropertyFile pf, String k) {
+        if (pf == null) {
+            return null;
+        }
+        String v = pf.getProperties().get(k);
+        if (v == null) {
+            return null;
+        }
+        return v.trim();
+    }
+
+    // Same as PropertyFile.getPlatformSpecificKey but looking through the layers.
+
+    public String getMergedPlatformSpecificKey(String attribute) {
+        String k = attribute + "." + Base.getOSFullName();
+        if (getMerged(k) != null) {
+            return k;
+        }
+
+        k = attribute + "." + Base.getOSName();
+        if (getMerged(k) != null) {
+            return k;
+        }
+
+        return attribute;
     }
 
     // Find a resource by its URI.  A URI is not a normal Java URI but a UECIDE
@@ -494,14 +616,14 @@ public class Context {
     // Execute a key as a script in whatever way is needed.
 
     public Object executeKey(String key) {
-        PropertyFile props = getMerged();
-    
         // If there is a platform specific version of the key then we should switch to that instead.
-        key = props.getPlatformSpecificKey(key);
+        key = getMergedPlatformSpecificKey(key);
+
+        String value = getMerged(key);
 
         // If the key is just a plain key and starts with a URI indicator then run it as a javascript file
-        if (props.get(key) != null) {
-            String data = parseString(props.get(key));
+        if (value != null) {
+            String data = parseString(value);
             String[] val = data.split("::");
             if (
                 val[0].startsWith("res:") || 
@@ -522,13 +644,13 @@ public class Context {
         }
 
         // If the key has a sub-key of .0 then run it as a UECIDE Script
-        if (props.get(key + ".0") != null) {
+        if (getMerged(key + ".0") != null) {
             return executeUScript(key);
         }
 
         // Otherwise try and run it as a command (either built in or system).
-        if (props.get(key) != null) {
-            return executeCommand(parseString(props.get(key)), parseString(props.get(key + ".environment")));
+        if (value != null) {
+            return executeCommand(parseString(value), parseString(getMerged(key + ".environment")));
         }
 
         return false;
@@ -540,14 +662,12 @@ public class Context {
         }
         Object ret = false;
         try {
-            ScriptEngineManager manager = new ScriptEngineManager();
-            ScriptEngine engine = manager.getEngineByName("JavaScript");
-
             if (script == null) { return false; }
             if (script.equals("")) { return false; }
 
-            engine.put("ctx", this);
-            engine.eval(script);
+            HashMap<String, Object> vars = new HashMap<String, Object>();
+            vars.put("ctx", this);
+            ScriptEngine engine = ScriptEngines.prepare(script, vars);
 
             Invocable inv = (Invocable)engine;
             if (inv == null) {
@@ -590,212 +710,79 @@ public class Context {
     }
 
 
-    public Object executeUScript(String key) {
-        PropertyFile props = getMerged();
-        PropertyFile script = props.getChildren(key);
-        ArrayList<String>lines = script.keySet();
-        int lineno = 0;
-
-        Object res = false;
-
-        while(script.keyExists(Integer.toString(lineno))) {
-            String lk = String.format("%s.%d", key, lineno);
-            String linekey = props.keyForOS(lk);
-            String ld = props.get(linekey);
+    // Compiled scripts.  A script only depends on its own key.* entries, so it is
+    // kept for as long as the layers that have any of those entries stay the same.
+    // Setting source.name, port and the like changes the settings layer (and so
+    // the merged properties) but leaves the script alone, unless the script itself
+    // lives in the settings.
 
-            ld = ld.trim();
-
-            if(ld.startsWith("goto::")) {
-                ld = parseString(ld);
-                String num = ld.substring(6);
-
-                try {
-                    lineno = Integer.parseInt(num);
-                    continue;
-                } catch(Exception e) {
-                    error(Base.i18n.string("err.syntax", key, lineno));
-                    error(ld);
-                    if (script.keyExists("fail")) {
-                        String failKey = String.format("%s.fail", key);
-                        executeKey(failKey);
-                    }
-                    return false;
-                }
-            }
-
-            if(ld.startsWith("set::")) {
-                ld = parseString(ld);
-                String param = ld.substring(5);
-                int epos = param.indexOf("=");
-
-                if(epos == -1) {
-                    error(Base.i18n.string("err.syntax", key, lineno));
-                    error(ld);
-                    if (script.keyExists("fail")) {
-                        String failKey = String.format("%s.fail", key);
-                        res = executeKey(failKey);
-                    }
-                    return false;
-                }
-
-                String kk = param.substring(0, epos);
-                String vv = param.substring(epos + 1);
-                settings.set(kk, vv);
-                lineno++;
-                continue;
-            }
-
-            if(ld.equals("fail")) {
-                if (script.keyExists("fail")) {
-                    String failKey = String.format("%s.fail", key);
-                    res = executeKey(failKey);
-                }
-                return false;
-            }
-
-            if(ld.equals("end")) {
-                if (script.keyExists("end")) {
-                    String endKey = String.format("%s.end", key);
-                    res = executeKey(endKey);
-                }
-                return res;
-            }
+    static class CachedUScript {
+        UScript script;
+        PropertyFile[] layers;
+        long[] versions;
+    }
 
-            res = executeKey(lk);
+    HashMap<String, CachedUScript> uscripts = new HashMap<String, CachedUScript>();
 
-            if (res instanceof Boolean) {
-                if((Boolean)res == false) {
-                    if (script.keyExists("fail")) {
-                        String failKey = String.format("%s.fail", key);
-                        res = executeKey(failKey);
-                    }
-                    return false;
-                }
+    synchronized UScript getUScript(String key) {
+        PropertyFile[] layers = getLayers();
+        long[] versions = new long[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i] != null && layers[i].keyExists(key)) {
+                versions[i] = layers[i].getVersion();
+            } else {
+                layers[i] = null;
             }
-
-            lineno++;
         }
-        if (script.keyExists("end")) {
-            String endKey = String.format("%s.end", key);
-            res = executeKey(endKey);
+
+        CachedUScript cached = uscripts.get(key);
+        if (cached != null && Arrays.equals(cached.layers, layers) && Arrays.equals(cached.versions, versions)) {
+            return cached.script;
         }
 
-        return res;
+        cached = new CachedUScript();
+        cached.script = new UScript(getMerged(), key);
+        cached.layers = layers;
+        cached.versions = versions;
+        uscripts.put(key, cached);
+        return cached.script;
     }
 
+    public Object executeUScript(String key) {
+        return getUScript(key).run(this);
+    }
 
+    // Replace any ${...} variables in a string with their values.  The string is
+    // compiled into a template (see StringTemplate) the first time it is seen.
 
     public String parseString(String in) {
-        PropertyFile tokens = getMerged();
-        
-        int iStart;
-        int iEnd;
-        int iTest;
-        String out;
-        String start;
-        String end;
-        String mid;
-
         if(in == null) {
             return null;
         }
 
-        out = in;
-
-        iStart = out.indexOf("${");
-
-        if(iStart == -1) {
-            return out;
-        }
-
-        iEnd = out.indexOf("}", iStart);
-        iTest = out.indexOf("${", iStart + 1);
-
-        while((iTest > -1) && (iTest < iEnd)) {
-            iStart = iTest;
-            iTest = out.indexOf("${", iStart + 1);
+        if(in.indexOf("${") == -1) {
+            return in;
         }
 
-        while(iStart != -1) {
-            start = out.substring(0, iStart);
-            end = out.substring(iEnd + 1);
-            mid = out.substring(iStart + 2, iEnd);
-
-            // Compatability hack for old format roots
-            if (mid.equals("board.root")) { mid = "board:root"; }
-            if (mid.equals("core.root")) { mid = "core:root"; }
-            if (mid.equals("compiler.root")) { mid = "compiler:root"; }
-
-            if(mid.indexOf(":") > -1) {
-                String command = mid.substring(0, mid.indexOf(":"));
-                String param = mid.substring(mid.indexOf(":") + 1);
-
-                mid = runFunctionVariable(command, param);
-            } else {
-                String tmid = tokens.get(mid);
-
-                if(tmid == null) {
-                    tmid = "";
-                }
-
-                mid = tmid;
-            }
-
-
-            if(mid != null) {
-                out = start + mid + end;
-            } else {
-                out = start + end;
-            }
-
-            iStart = out.indexOf("${");
-            iEnd = out.indexOf("}", iStart);
-            iTest = out.indexOf("${", iStart + 1);
-
-            while((iTest > -1) && (iTest < iEnd)) {
-                iStart = iTest;
-                iTest = out.indexOf("${", iStart + 1);
-            }
-        }
-
-        // This shouldn't be needed as the methodology should always find any tokens put in
-        // by other token replacements.  But just in case, eh?
-        if(out != in) {
-            out = parseString(out);
-        }
-
-        return out;
+        return StringTemplate.expand(this, in);
     }
 
+    // How many function variables have been run, so callers can tell if
+    // expanding a string used anything other than the layers.
+    long functionCalls = 0;
+
     public String runFunctionVariable(String command, String param) {
+        functionCalls++;
         try {
-            Class<?> c = Class.forName("org.uecide.varcmd.vc_" + command);
-
-            if(c == null) {
-                return "";
-            }
-
-            Constructor<?> ctor = c.getConstructor();
-            VariableCommand  p = (VariableCommand)(ctor.newInstance());
+            VariableCommand p = CommandRegistry.getVariableCommand(command);
 
             if (p == null) {
                 return "";
             }
 
-            Class[] param_types = new Class<?>[2];
-            param_types[0] = org.uecide.Context.class;
-            param_types[1] = String.class;
-            Method m = c.getMethod("main", param_types);
-
-            if(m == null) {
-                return "";
-            }
-
-            Object[] args = new Object[2];
-            args[0] = this;
-            args[1] = param;
             try {
-                return (String)m.invoke(p, args);
+                String ret = p.main(this, param);
+                return ret == null ? "" : ret;
             } catch (Exception e2) {
             }
             return "";
@@ -813,7 +800,7 @@ public class Context {
 
             String cmdName = split[0];
 
-            String[] arg = new String[argc];
+            final String[] arg = new String[argc];
 
             for(int i = 0; i < argc; i++) {
                 arg[i] = split[i + 1];
@@ -835,44 +822,48 @@ public class Context {
                 command(cmdName + " " + argstr);
             }
 
-            Class<?> c = Class.forName("org.uecide.builtin." + cmdName);
-
-            Constructor<?> ctor = c.getConstructor();
-            final BuiltinCommand  p = (BuiltinCommand)(ctor.newInstance());
+            final BuiltinCommand p = CommandRegistry.createBuiltinCommand(cmdName);
 
-            if(c == null) {
+            if(p == null) {
                 return false;
             }
 
-            Class<?>[] param_types = new Class<?>[2];
-            param_types[0] = org.uecide.Context.class;
-            param_types[1] = String[].class;
-            
-            final Method m = c.getMethod("main", param_types);
-            final Method k = c.getMethod("kill");
+            final Context me = this;
 
-            Object[] args = new Object[2];
-            args[0] = this;
-            args[1] = arg;
-
-            final Object[] aa = args;
+            RunningBuiltin running = new RunningBuiltin(p);
 
             try {
-                runningThread = new ThreadRet() {
-                    public void run() {
-                        try {
-                            retval = m.invoke(p, aa);
-                        } catch (Exception e3) {
-                            retval = "";
-                        } 
+                synchronized (runningBuiltins) {
+                    if (runningBuiltins.size() == 0) {
+                        builtinsKilled = false;
+                    } else if (builtinsKilled) {
+                        return "";
                     }
-                };
-                runningThread.start();
-                runningThread.join();
-                return runningThread.retval;
+                    runningBuiltins.add(running);
+                    running.future = CommandRegistry.submit(new Callable<Object>() {
+                        public Object call() {
+                            try {
+                                return p.main(me, arg);
+                            } catch (Exception e3) {
+                                return "";
+                            }
+                        }
+                    });
+                }
+                try {
+                    return running.future.get();
+                } catch (CancellationException e4) {
+                    // Killed by killRunningProcess.
+                    return "";
+                } catch (ExecutionException e4) {
+                    return "";
+                }
             } catch (Exception e2) {
-                runningThread = null;
                 return "";
+            } finally {
+                synchronized (runningBuiltins) {
+                    runningBuiltins.remove(running);
+                }
             }
 
 
@@ -880,15 +871,12 @@ public class Context {
             Base.error(e);
         }
 
-        runningThread = null;
         return false;
     }
 
 
 
     public Object runSystemCommand(String command, String env) {
-        PropertyFile props = getMerged();
-
         Object res;
 
         if(command == null) {
@@ -922,8 +910,9 @@ public class Context {
             }
         }
 
-        if (props.get("build.path") != null) {
-            process.directory(props.getFile("build.path"));
+        String buildPath = getMerged("build.path");
+        if (buildPath != null) {
+            process.directory(new File(buildPath));
         }
 
         StringBuilder sb = new StringBuilder();
@@ -948,184 +937,188 @@ public class Context {
             return false;
         }
 
-        Base.processes.add(runningProcess);
-
-        InputStream in = runningProcess.getInputStream();
-        InputStream err = runningProcess.getErrorStream();
-        boolean running = true;
-        int result = -1;
-
-        byte[] tmp = new byte[1];
-
+        synchronized (Base.processes) {
+            Base.processes.add(runningProcess);
+        }
 
-        String outline = "";
-        String errline = "";
+        Process proc = runningProcess;
+        LinkedBlockingQueue<StreamChunk> queue = new LinkedBlockingQueue<StreamChunk>();
+        streamPumps.execute(new StreamPump(proc.getInputStream(), false, queue));
+        streamPumps.execute(new StreamPump(proc.getErrorStream(), true, queue));
 
-        while(isProcessRunning(runningProcess)) {
-            try {
-                while(in.available() > 0) {
-                    int i = in.read(tmp, 0, 1);
+        int result = -1;
+        int open = 2;
+        boolean reported = false;
 
-                    if(i < 0)break;
-                    
-                    String inch = new String(tmp, 0, i);
+        StringBuilder outline = new StringBuilder();
+        StringBuilder errline = new StringBuilder();
+        StringBuilder outBatch = new StringBuilder();
+        StringBuilder errBatch = new StringBuilder();
+        ArrayList<StreamChunk> chunks = new ArrayList<StreamChunk>();
 
-                    if (parser != null) {
-                        if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                            outline += inch;
-                        }
-                        if (inch.equals("\n")) {
-                            outline = parser.parseStreamMessage(this, outline);
-                            if (buffer != null) {
-                                buffer.append(inch);
-                            } else {                        
-                                messageStream(inch);
+        try {
+            while (open > 0) {
+                chunks.add(queue.take());
+                queue.drainTo(chunks);
+
+                for (StreamChunk chunk : chunks) {
+                    if (chunk.data == null) {
+                        open--;
+                        if (chunk.exception != null && !reported) {
+                            reported = true;
+                            String igm = chunk.exception.getMessage();
+                            if (igm != null) {
+                                if (igm.equals("Stream closed")) {
+                                    error(Base.i18n.string("misc.cancelled"));
+                                } else {
+                                    error(chunk.exception);
+                                }
                             }
-                            outline = "";
                         }
+                    } else if (chunk.error) {
+                        splitStreamData(chunk.data, true, errline, errBatch);
                     } else {
-                        if (buffer != null) {
-                            buffer.append(inch);
-                        } else {                        
-                            messageStream(inch);
-                        }
+                        splitStreamData(chunk.data, false, outline, outBatch);
                     }
                 }
+                chunks.clear();
 
-                while(err.available() > 0) {
-                    int i = err.read(tmp, 0, 1);
+                flushStreamData(false, outBatch);
+                flushStreamData(true, errBatch);
+            }
 
-                    if(i < 0)break;
-                    
-                    String inch = new String(tmp, 0, i);
-                    if (parser != null) {
-                        if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                            errline += inch;
-                        }
-                        if (inch.equals("\n")) {
-                            errline = parser.parseStreamError(this, errline);
-                            if (buffer != null) {
-                                buffer.append(inch);
-                            } else {                        
-                                errorStream(inch);
-                            }
-                            errline = "";
-                        }
-                    } else {
-                        if (buffer != null) {
-                            buffer.append(inch);
-                        } else {                        
-                            errorStream(inch);
-                        }
-                    }
-                }
+            // Anything left over that didn't end with a newline
+            if (outline.length() > 0) {
+                outBatch.append(parseStreamLine(false, outline.toString()));
+                flushStreamData(false, outBatch);
+            }
+            if (errline.length() > 0) {
+                errBatch.append(parseStreamLine(true, errline.toString()));
+                flushStreamData(true, errBatch);
+            }
 
-                Thread.sleep(1);
+            result = proc.waitFor();
+        } catch (InterruptedException e) {
+            proc.destroy();
+        }
 
-            } catch(Exception ignored) {
-                Base.error(ignored);
-            }
+        synchronized (Base.processes) {
+            Base.processes.remove(proc);
         }
 
-        try {
-            while(in.available() > 0) {
-                int i = in.read(tmp, 0, 1);
-
-                if(i < 0)break;
-                
-                String inch = new String(tmp, 0, i);
-                if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                    outline += inch;
-                }
+        if(result == 0) {
+            return true;
+        }
 
-                if (inch.equals("\n")) {
-                    if (parser != null) {
-                        outline = parser.parseStreamMessage(this, outline);
-                    }
-                    if (buffer != null) {
-                        buffer.append(outline);
-                    } else {                        
-                        messageStream(outline);
-                    }
-                    outline = "";
-                }
-            }
+        return false;
+    }
 
-            if (!outline.equals("")) {
-                if (parser != null) {
-                    outline = parser.parseStreamMessage(this, outline);
-                }
-                if (buffer != null) {
-                    buffer.append(outline);
-                } else {                        
-                    messageStream(outline);
-                }
-            }
+    // The output of a running process is read by a pair of pump threads, one for
+    // stdout and one for stderr.  They read as much as is available in one go and
+    // queue it up for the thread that ran the command, which does all the line
+    // splitting, parsing and printing.  That way the parsers and listeners still
+    // get called from the same thread they always were.  A chunk with no data marks
+    // the end of a stream.
 
-            while(err.available() > 0) {
-                int i = err.read(tmp, 0, 1);
+    static ExecutorService streamPumps = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Process output pump");
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
-                if(i < 0)break;
-                
-                String inch = new String(tmp, 0, i);
-                if (((inch.charAt(0) >= ' ') && (inch.charAt(0) <= (char)127)) || (inch.charAt(0) == '\n')) {
-                    errline += inch;
-                }
+    static class StreamChunk {
+        boolean error;
+        String data;
+        IOException exception;
 
-                if (inch.equals("\n")) {
-                    if (parser != null) {
-                        errline = parser.parseStreamError(this, errline);
-                    }
-                    if (bufferError) {
-                        if (buffer != null) {
-                            buffer.append(errline);
-                        } else {                        
-                            errorStream(errline);
-                        }
-                    } else {
-                        errorStream(errline);
-                    }
-                    errline = "";
-                }
-            }
+        StreamChunk(boolean e, String d, IOException ex) {
+            error = e;
+            data = d;
+            exception = ex;
+        }
+    }
 
-            if (!errline.equals("")) {
-                if (parser != null) {
-                    errline = parser.parseStreamError(this, errline);
-                }
-                if (bufferError) {
-                    if (buffer != null) {
-                        buffer.append(errline);
-                    } else {                        
-                        errorStream(errline);
+    static class StreamPump implements Runnable {
+        InputStream stream;
+        boolean error;
+        BlockingQueue<StreamChunk> queue;
+
+        StreamPump(InputStream s, boolean e, BlockingQueue<StreamChunk> q) {
+            stream = s;
+            error = e;
+            queue = q;
+        }
+
+        public void run() {
+            IOException failed = null;
+            Reader reader = new InputStreamReader(stream);
+            char[] buf = new char[8192];
+            try {
+                int n;
+                while ((n = reader.read(buf, 0, buf.length)) >= 0) {
+                    if (n > 0) {
+                        queue.add(new StreamChunk(error, new String(buf, 0, n), null));
                     }
-                } else {
-                    errorStream(errline);
                 }
+            } catch (IOException e) {
+                failed = e;
             }
-
-        } catch(Exception ignored) {
-            String igm = ignored.getMessage();
-            if (igm != null) {
-                if (igm.equals("Stream closed")) {
-                    error(Base.i18n.string("misc.cancelled"));
-                } else {
-                    error(ignored);
-                }
+            try {
+                reader.close();
+            } catch (IOException e) {
             }
+            queue.add(new StreamChunk(error, null, failed));
         }
+    }
+
+    // Without a parser the data is passed straight through as it arrives, so things
+    // like progress bars still work.  With a parser it is split into lines, with any
+    // control characters removed, and each line is passed through the parser.
 
-        if (runningProcess != null) {
-            result = runningProcess.exitValue();
+    void splitStreamData(String data, boolean isError, StringBuilder line, StringBuilder batch) {
+        if (parser == null) {
+            batch.append(data);
+            return;
         }
 
-        Base.processes.remove(runningProcess);
+        int len = data.length();
+        for (int i = 0; i < len; i++) {
+            char c = data.charAt(i);
+            if (c == '\n') {
+                line.append(c);
+                batch.append(parseStreamLine(isError, line.toString()));
+                line.setLength(0);
+            } else if (c >= ' ') {
+                line.append(c);
+            }
+        }
+    }
 
-        if(result == 0) {
-            return true;
+    String parseStreamLine(boolean isError, String line) {
+        if (parser == null) {
+            return line;
         }
+        String parsed = isError ? parser.parseStreamError(this, line) : parser.parseStreamMessage(this, line);
+        return parsed == null ? "" : parsed;
+    }
 
-        return false;
+    void flushStreamData(boolean isError, StringBuilder batch) {
+        if (batch.length() == 0) {
+            return;
+        }
+
+        String data = batch.toString();
+        batch.setLength(0);
+
+        if (buffer != null && (!isError || bufferError)) {
+            buffer.append(data);
+        } else if (isError) {
+            errorStream(data);
+        } else {
+            messageStream(data);
+        }
     }
 
     public static boolean isProcessRunning(Process process)
@@ -1145,12 +1138,23 @@ public class Context {
     }
 
     public void killRunningProcess() {
-        if (runningThread != null) {
-            runningThread.stop();
+        synchronized (runningBuiltins) {
+            if (runningBuiltins.size() > 0) {
+                builtinsKilled = true;
+            }
+            for (int i = runningBuiltins.size() - 1; i >= 0; i--) {
+                RunningBuiltin rb = runningBuiltins.get(i);
+                rb.command.kill();
+                if (rb.future != null) {
+                    rb.future.cancel(true);
+                }
+            }
         }
         if(runningProcess != null) {
             runningProcess.destroy();
-            Base.processes.remove(runningProcess);
+            synchronized (Base.processes) {
+                Base.processes.remove(runningProcess);
+            }
         }
     }
 
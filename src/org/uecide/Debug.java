@@ -180,7 +180,7 @@ public class Debug {
         win.dispose();
     }
 
-    public static void message(String s) {
+    public static synchronized void message(String s) {
         Thread t = Thread.currentThread();
         StackTraceElement[] st = t.getStackTrace();
         StackTraceElement caller = st[2];
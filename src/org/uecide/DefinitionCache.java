@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// A snapshot of the parsed contents of every board, core, compiler and programmer
+// definition file, so they don't all have to be parsed from scratch every time
+// the IDE starts.
+//
+// Each file is filed by its full path along with its size and modification time
+// (and those of any files it pulls in with @include).  If they all still match
+// the parsed data comes straight from the snapshot, otherwise the file is parsed
+// again and the snapshot updated.  The snapshot is a simple binary file in the
+// cache folder which is written to a temporary file and renamed into place so a
+// crash part way through can't leave a broken one behind.  Anything that doesn't
+// look right about it (wrong format, different IDE version, short read) just
+// means it gets thrown away and everything is parsed again.
+
+public class DefinitionCache {
+
+    static final int MAGIC = 0x55444546;
+    static final int FORMAT = 1;
+
+    static DefinitionCache cache = null;
+
+    File file;
+    ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    volatile boolean dirty = false;
+
+    AtomicInteger hits = new AtomicInteger(0);
+    AtomicInteger misses = new AtomicInteger(0);
+    AtomicLong parseTime = new AtomicLong(0);
+    AtomicLong copyTime = new AtomicLong(0);
+    long readTime = 0;
+    long writeTime = 0;
+
+    static class Stamp {
+        String path;
+        long size;
+        long modified;
+
+        Stamp(File f) {
+            path = f.getAbsolutePath();
+            size = f.length();
+            modified = f.lastModified();
+        }
+
+        Stamp(String p, long s, long m) {
+            path = p;
+            size = s;
+            modified = m;
+        }
+
+        boolean isCurrent() {
+            File f = new File(path);
+            return f.exists() && f.length() == size && f.lastModified() == modified;
+        }
+    }
+
+    static class Entry {
+        Stamp stamp;
+        ArrayList<Stamp> includes = new ArrayList<Stamp>();
+        TreeMap<String, String> properties;
+        TreeMap<String, String> embedded;
+        TreeMap<String, String> embeddedTypes;
+
+        boolean isCurrent() {
+            if (!stamp.isCurrent()) {
+                return false;
+            }
+            for (Stamp s : includes) {
+                if (!s.isCurrent()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    DefinitionCache(File f) {
+        file = f;
+        read();
+    }
+
+    public static synchronized DefinitionCache getCache() {
+        if (cache == null) {
+            cache = new DefinitionCache(new File(Base.getCacheFolder(), "definitions.cache"));
+        }
+        return cache;
+    }
+
+    // Get the parsed contents of a definition file, either from the snapshot or by
+    // parsing it.  The caller always gets its own copy to do with as it likes.
+
+    public PropertyFile load(File f) {
+        String key = f.getAbsolutePath();
+        Entry e = entries.get(key);
+
+        if (e != null && e.isCurrent()) {
+            long start = System.nanoTime();
+            PropertyFile pf = new PropertyFile(f, e.properties, e.embedded, e.embeddedTypes);
+            copyTime.addAndGet(System.nanoTime() - start);
+            hits.incrementAndGet();
+            return pf;
+        }
+
+        long start = System.nanoTime();
+        PropertyFile pf = new PropertyFile(f);
+        parseTime.addAndGet(System.nanoTime() - start);
+        misses.incrementAndGet();
+
+        e = new Entry();
+        e.stamp = new Stamp(f);
+        for (File inc : pf.getIncludedFiles()) {
+            e.includes.add(new Stamp(inc));
+        }
+        e.properties = new TreeMap<String, String>(pf.getProperties());
+        e.embedded = new TreeMap<String, String>(pf.getEmbeddedMap());
+        e.embeddedTypes = new TreeMap<String, String>(pf.getEmbeddedTypes());
+        entries.put(key, e);
+        dirty = true;
+
+        return pf;
+    }
+
+    // Write the snapshot out if anything has changed.  Entries for files that no
+    // longer exist are dropped first.
+
+    public synchronized void save() {
+        for (String key : entries.keySet()) {
+            if (!new File(key).exists()) {
+                entries.remove(key);
+                dirty = true;
+            }
+        }
+
+        if (!dirty) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId());
+        try {
+            file.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, getVersionString());
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                writeStamp(out, e.stamp);
+                out.writeInt(e.includes.size());
+                for (Stamp s : e.includes) {
+                    writeStamp(out, s);
+                }
+                writeMap(out, e.properties);
+                writeMap(out, e.embedded);
+                writeMap(out, e.embeddedTypes);
+            }
+            out.close();
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    return;
+                }
+            }
+            dirty = false;
+        } catch (Exception ex) {
+            tmp.delete();
+            Base.error(ex);
+        }
+        writeTime += System.nanoTime() - start;
+    }
+
+    void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                    return;
+                }
+                if (!readString(in).equals(getVersionString())) {
+                    Debug.message("Definition snapshot is from a different version - ignoring it");
+                    return;
+                }
+
+                ConcurrentHashMap<String, Entry> loaded = new ConcurrentHashMap<String, Entry>();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry e = new Entry();
+                    e.stamp = readStamp(in);
+                    int incs = in.readInt();
+                    for (int j = 0; j < incs; j++) {
+                        e.includes.add(readStamp(in));
+                    }
+                    e.properties = readMap(in);
+                    e.embedded = readMap(in);
+                    e.embeddedTypes = readMap(in);
+                    loaded.put(e.stamp.path, e);
+                }
+                entries = loaded;
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            Debug.message("Unable to read definition snapshot: " + ex.getMessage());
+            entries = new ConcurrentHashMap<String, Entry>();
+        }
+        readTime = System.nanoTime() - start;
+    }
+
+    String getVersionString() {
+        return String.valueOf(Base.systemVersion);
+    }
+
+    public String getReport() {
+        return String.format("Definitions: %d from snapshot (read %dms, copy %dms), %d parsed (%dms), snapshot written in %dms",
+            hits.get(), readTime / 1000000, copyTime.get() / 1000000,
+            misses.get(), parseTime.get() / 1000000, writeTime / 1000000);
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        parseTime.set(0);
+        copyTime.set(0);
+        readTime = 0;
+        writeTime = 0;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("Corrupt snapshot");
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    static void writeStamp(DataOutputStream out, Stamp s) throws IOException {
+        writeString(out, s.path);
+        out.writeLong(s.size);
+        out.writeLong(s.modified);
+    }
+
+    static Stamp readStamp(DataInputStream in) throws IOException {
+        String path = readString(in);
+        long size = in.readLong();
+        long modified = in.readLong();
+        return new Stamp(path, size, modified);
+    }
+
+    static void writeMap(DataOutputStream out, TreeMap<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    static TreeMap<String, String> readMap(DataInputStream in) throws IOException {
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String k = readString(in);
+            map.put(k, readString(in));
+        }
+        return map;
+    }
+}
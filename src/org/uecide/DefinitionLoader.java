@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Finds and loads the board, core, compiler and programmer definitions.  The
+// folders are walked and the definition files parsed in parallel on a shared
+// fork/join pool, but the results always come out the same way round no matter
+// which thread finishes first:
+//
+// * Folders are taken in the order they are given, and a definition in a later
+//   folder replaces one of the same name in an earlier folder.
+// * Within a folder the entries are taken in alphabetical order, and a later one
+//   replaces an earlier one of the same name.
+
+public class DefinitionLoader {
+
+    static ForkJoinPool pool = null;
+
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    // How to make the object for one kind of definition.
+    static abstract class Kind<T extends UObject> {
+        String name;
+        String fileName;
+        boolean recurse;
+
+        Kind(String n, String f, boolean r) {
+            name = n;
+            fileName = f;
+            recurse = r;
+        }
+
+        abstract T create(File dir);
+    }
+
+    static final Kind<Compiler> COMPILERS = new Kind<Compiler>("compiler", "compiler.txt", false) {
+        Compiler create(File dir) { return new Compiler(dir); }
+    };
+
+    static final Kind<Core> CORES = new Kind<Core>("core", "core.txt", false) {
+        Core create(File dir) { return new Core(dir); }
+    };
+
+    static final Kind<Board> BOARDS = new Kind<Board>("board", "board.txt", true) {
+        Board create(File dir) { return new Board(dir); }
+    };
+
+    static final Kind<Programmer> PROGRAMMERS = new Kind<Programmer>("programmer", "programmer.txt", true) {
+        Programmer create(File dir) { return new Programmer(dir); }
+    };
+
+    // Walk a folder looking for definitions.  Folders that aren't definitions
+    // themselves are walked in their own tasks (if the kind allows it), and the
+    // results joined back together in order.
+    static class FolderScan extends RecursiveTask<ArrayList<File>> {
+        private static final long serialVersionUID = 1L;
+
+        File folder;
+        Kind<?> kind;
+
+        FolderScan(File f, Kind<?> k) {
+            folder = f;
+            kind = k;
+        }
+
+        protected ArrayList<File> compute() {
+            ArrayList<File> found = new ArrayList<File>();
+            String[] list = folder.list();
+
+            if (list == null) {
+                return found;
+            }
+
+            Arrays.sort(list);
+            ArrayList<Object> parts = new ArrayList<Object>();
+
+            for (String entry : list) {
+                if (entry.charAt(0) == '.') {
+                    continue;
+                }
+
+                File dir = new File(folder, entry);
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+
+                if (new File(dir, kind.fileName).exists()) {
+                    parts.add(dir);
+                } else if (kind.recurse) {
+                    FolderScan sub = new FolderScan(dir, kind);
+                    sub.fork();
+                    parts.add(sub);
+                }
+            }
+
+            for (Object part : parts) {
+                if (part instanceof FolderScan) {
+                    found.addAll(((FolderScan)part).join());
+                } else {
+                    found.add((File)part);
+                }
+            }
+
+            return found;
+        }
+    }
+
+    static class Parse<T extends UObject> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        File dir;
+        Kind<T> kind;
+
+        Parse(File d, Kind<T> k) {
+            dir = d;
+            kind = k;
+        }
+
+        protected T compute() {
+            Debug.message("    Loading " + kind.name + " " + new File(dir, kind.fileName).getAbsolutePath());
+            return kind.create(dir);
+        }
+    }
+
+    // Load everything of one kind from a set of folders.
+    static class Load<T extends UObject> extends RecursiveTask<TreeMap<String, T>> {
+        private static final long serialVersionUID = 1L;
+
+        File[] folders;
+        Kind<T> kind;
+
+        Load(File[] f, Kind<T> k) {
+            folders = f;
+            kind = k;
+        }
+
+        protected TreeMap<String, T> compute() {
+            ArrayList<FolderScan> scans = new ArrayList<FolderScan>();
+            for (File folder : folders) {
+                if (folder == null || !folder.isDirectory()) {
+                    continue;
+                }
+                Debug.message("Loading " + kind.name + "s from " + folder.getAbsolutePath());
+                FileWatcher.watch(folder, FileWatcher.HARDWARE, 2);
+                FolderScan scan = new FolderScan(folder, kind);
+                scan.fork();
+                scans.add(scan);
+            }
+
+            ArrayList<Parse<T>> parses = new ArrayList<Parse<T>>();
+            for (FolderScan scan : scans) {
+                for (File dir : scan.join()) {
+                    Parse<T> p = new Parse<T>(dir, kind);
+                    p.fork();
+                    parses.add(p);
+                }
+            }
+
+            TreeMap<String, T> loaded = new TreeMap<String, T>();
+            for (Parse<T> p : parses) {
+                T ob = p.join();
+                if (ob.isValid()) {
+                    loaded.put(ob.getName(), ob);
+                } else {
+                    Debug.message("    ==> " + p.dir.getAbsolutePath() + " IS NOT VALID!!!");
+                }
+            }
+            return loaded;
+        }
+    }
+
+    public static <T extends UObject> TreeMap<String, T> load(File[] folders, Kind<T> kind) {
+        return getPool().invoke(new Load<T>(folders, kind));
+    }
+
+    // Load all four kinds at once and put them into Base's lists.
+    public static void loadAll() {
+        Load<Compiler> compilers = new Load<Compiler>(Base.getCompilersFolders(), COMPILERS);
+        Load<Core> cores = new Load<Core>(Base.getCoresFolders(), CORES);
+        Load<Board> boards = new Load<Board>(Base.getBoardsFolders(), BOARDS);
+        Load<Programmer> programmers = new Load<Programmer>(Base.getProgrammersFolders(), PROGRAMMERS);
+
+        ForkJoinPool p = getPool();
+        p.execute(compilers);
+        p.execute(cores);
+        p.execute(boards);
+        p.execute(programmers);
+
+        replace(Base.compilers, compilers.join());
+        replace(Base.cores, cores.join());
+        replace(Base.boards, boards.join());
+        replace(Base.programmers, programmers.join());
+    }
+
+    static <T> void replace(TreeMap<String, T> dest, TreeMap<String, T> src) {
+        dest.clear();
+        dest.putAll(src);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.security.MessageDigest;
+
+// Keeps track of what each compiled object depends on so we can tell when it needs
+// rebuilding.  For each object we record a hash of the command used to compile it,
+// the time the compilation started and the list of files (the source plus every
+// header it pulled in) that the compiler reported in its .d dependency file.
+//
+// An object is out of date if the command has changed, or if any of the files it
+// depends on have been changed (or removed) since it was compiled.
+//
+// There is one database per folder, stored in the file ".dependencies".
+
+public class DependencyDatabase {
+
+    static final String DB_FILE = ".dependencies";
+
+    static HashMap<String, DependencyDatabase> databases = new HashMap<String, DependencyDatabase>();
+
+    class Entry {
+        String command;
+        long time;
+        ArrayList<String> depends = new ArrayList<String>();
+    }
+
+    File dbFile;
+    HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    boolean dirty = false;
+
+    DependencyDatabase(File folder) {
+        dbFile = new File(folder, DB_FILE);
+        load();
+    }
+
+    // Get the database for the given folder, loading it if needed.
+
+    public static synchronized DependencyDatabase getDatabase(File folder) {
+        String path = folder.getAbsolutePath();
+        DependencyDatabase db = databases.get(path);
+        if (db == null) {
+            db = new DependencyDatabase(folder);
+            databases.put(path, db);
+        }
+        return db;
+    }
+
+    // Write any changed databases out to disk.
+
+    public static synchronized void saveAll() {
+        for (DependencyDatabase db : databases.values()) {
+            db.save();
+        }
+    }
+
+    public synchronized boolean hasEntry(String key) {
+        return entries.get(key) != null;
+    }
+
+    // See if the object needs rebuilding.  Returns true if there is no entry for it.
+
+    public synchronized boolean isOutOfDate(String key, String command) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return true;
+        }
+
+        if (!e.command.equals(hash(command))) {
+            Debug.message(key + ": command line changed");
+            return true;
+        }
+
+        for (String dep : e.depends) {
+            File f = new File(dep);
+            if (!f.exists()) {
+                Debug.message(key + ": " + dep + " has gone");
+                return true;
+            }
+            if (f.lastModified() > e.time) {
+                Debug.message(key + ": " + dep + " has changed");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Record a successful compilation.  The dependency file is the .d file made
+    // by the compiler.  If it doesn't exist then only the source file is recorded.
+
+    public synchronized void update(String key, String command, long time, File source, File depFile) {
+        Entry e = new Entry();
+        e.command = hash(command);
+        e.time = time;
+        e.depends.add(source.getAbsolutePath());
+
+        if (depFile != null && depFile.exists()) {
+            for (String dep : parseDepFile(depFile)) {
+                File df = new File(dep);
+                if (!df.isAbsolute()) {
+                    df = new File(depFile.getParentFile(), dep);
+                }
+                String path = df.getAbsolutePath();
+                if (!e.depends.contains(path)) {
+                    e.depends.add(path);
+                }
+            }
+        }
+
+        entries.put(key, e);
+        dirty = true;
+    }
+
+    public synchronized void remove(String key) {
+        if (entries.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    // Read the prerequisites of the first rule in a make style dependency file.  Any
+    // other rules (the phony targets made by -MP) are ignored.
+
+    public static ArrayList<String> parseDepFile(File f) {
+        ArrayList<String> deps = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(f));
+            String line;
+            while ((line = in.readLine()) != null) {
+                sb.append(line);
+                sb.append("\n");
+            }
+            in.close();
+        } catch (Exception e) {
+            return deps;
+        }
+        String data = sb.toString();
+
+        data = data.replace("\r", "").replace("\\\n", " ");
+
+        String rule = data;
+        int nl = data.indexOf("\n");
+        if (nl > -1) {
+            rule = data.substring(0, nl);
+        }
+
+        // Find the colon that ends the target.  Skip any that are part of a Windows
+        // drive letter.
+        int colon = -1;
+        for (int i = 0; i < rule.length(); i++) {
+            if (rule.charAt(i) == ':') {
+                if (i + 1 >= rule.length() || Character.isWhitespace(rule.charAt(i + 1))) {
+                    colon = i;
+                    break;
+                }
+            }
+        }
+        if (colon == -1) {
+            return deps;
+        }
+
+        StringBuilder word = new StringBuilder();
+        for (int i = colon + 1; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '\\' && i + 1 < rule.length() && rule.charAt(i + 1) == ' ') {
+                word.append(' ');
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                if (word.length() > 0) {
+                    deps.add(word.toString());
+                    word = new StringBuilder();
+                }
+            } else {
+                word.append(c);
+            }
+        }
+        if (word.length() > 0) {
+            deps.add(word.toString());
+        }
+        return deps;
+    }
+
+    public static String hash(String s) {
+        if (s == null) {
+            s = "";
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(s.hashCode());
+        }
+    }
+
+    // The file format is one object per line, tab separated:
+    // key, command hash, time, dependencies...
+
+    synchronized void load() {
+        entries.clear();
+        if (!dbFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(dbFile), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length < 3) {
+                    continue;
+                }
+                Entry e = new Entry();
+                e.command = parts[1];
+                try {
+                    e.time = Long.parseLong(parts[2]);
+                } catch (Exception ex) {
+                    continue;
+                }
+                for (int i = 3; i < parts.length; i++) {
+                    e.depends.add(parts[i]);
+                }
+                entries.put(parts[0], e);
+            }
+            in.close();
+        } catch (Exception ex) {
+            Base.error(ex);
+        }
+        dirty = false;
+    }
+
+    // The database is written to a temporary file which then replaces the real one,
+    // so a crash part way through never leaves a truncated database behind.
+
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(dbFile.getParentFile(), dbFile.getName() + "." + Thread.currentThread().getId());
+        try {
+            File parent = dbFile.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            for (String key : entries.keySet()) {
+                Entry e = entries.get(key);
+                out.print(key);
+                out.print("\t");
+                out.print(e.command);
+                out.print("\t");
+                out.print(e.time);
+                for (String dep : e.depends) {
+                    out.print("\t");
+                    out.print(dep);
+                }
+                out.println();
+            }
+            out.close();
+            if (out.checkError()) {
+                tmp.delete();
+                return;
+            }
+
+            if (!tmp.renameTo(dbFile)) {
+                dbFile.delete();
+                if (!tmp.renameTo(dbFile)) {
+                    tmp.delete();
+                    return;
+                }
+            }
+            dirty = false;
+        } catch (Exception ex) {
+            tmp.delete();
+            Base.error(ex);
+        }
+    }
+}
@@ -1204,20 +1204,49 @@ public class Editor extends JFrame {
         return hasChanged;
     }
 
+    // The keyword list each tab was last given.  Tabs that already have the
+    // current list are left alone, ones with an older list just get the new
+    // and changed keywords added, and they are only cleared and filled again
+    // if something has been taken out.
+    HashMap<EditorBase, HashMap<String, Integer>> tabKeywords = new HashMap<EditorBase, HashMap<String, Integer>>();
+
     public void updateKeywords() {
         HashMap<String, Integer>keywordList = loadedSketch.getKeywords();
+        HashMap<EditorBase, HashMap<String, Integer>> given = new HashMap<EditorBase, HashMap<String, Integer>>();
+
         for (int i = 0; i < getTabCount(); i++) {
             EditorBase eb = getTab(i);
-            if (eb != null) {
+            if (eb == null) {
+                continue;
+            }
+
+            given.put(eb, keywordList);
+            HashMap<String, Integer> old = tabKeywords.get(eb);
+            if (old == keywordList) {
+                continue;
+            }
+
+            if (old == null || !keywordList.keySet().containsAll(old.keySet())) {
                 eb.clearKeywords();
-                for (Map.Entry<String, Integer>kw : keywordList.entrySet()) {
+                old = null;
+            }
+
+            for (Map.Entry<String, Integer>kw : keywordList.entrySet()) {
+                if (old == null || !kw.getValue().equals(old.get(kw.getKey()))) {
                     eb.addKeyword(kw.getKey(), kw.getValue());
                 }
-                eb.repaint();
             }
+            eb.repaint();
         }
+
+        tabKeywords = given;
     }
 
+    // What the source tree was last built from: a version number for each
+    // file, from the symbols found in it and the tab it is open in.  Only the
+    // files whose version has changed get their branch of the tree rebuilt.
+    HashMap<File, Integer> sourceTreeState = new HashMap<File, Integer>();
+
     public void updateSourceTree() {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
@@ -1227,14 +1256,12 @@ public class Editor extends JFrame {
                     return;
                 }
 
-                DefaultMutableTreeNode ntc = new DefaultMutableTreeNode();
-                treeSource.removeAllChildren();
-                DefaultMutableTreeNode node;
-
                 File[] flist = loadedSketch.sketchFiles.toArray(new File[0]);
 
                 Arrays.sort(flist);
 
+                LinkedHashMap<File, Integer> state = new LinkedHashMap<File, Integer>();
+
                 for(File f : flist) {
                     int type = FileType.getType(f);
 
@@ -1243,76 +1270,106 @@ public class Editor extends JFrame {
                         case FileType.CPPSOURCE:
                         case FileType.ASMSOURCE:
                         case FileType.SKETCH:
-                            node = new DefaultMutableTreeNode(f.getName());
-                            node.setUserObject(f);
-                            treeSource.add(node);
-                            HashMap<Integer, String> funcs = loadedSketch.getFunctionsForFile(f);
-
-                            if(funcs != null) {
-                                for(int line : funcs.keySet()) {
-                                    FunctionBookmark b = new FunctionBookmark(f, line, funcs.get(line));
-                                    DefaultMutableTreeNode fe = new DefaultMutableTreeNode(b);
-                                    node.add(fe);
-                                }
-                            }
-                            EditorBase eb = null;
                             int tab = getTabByFile(f);
-                            if (tab != -1) {
-                                eb = getTab(tab);
-                                eb.removeFlagGroup(0x2000);
-                            }
-
-                            ArrayList<TodoEntry> todo = loadedSketch.todo(f);
-                            if (todo != null && todo.size() > 0) {
-
-                                FlaggedList noteList = new FlaggedList(FlaggedList.Green, Base.i18n.string("tree.notes"));
-                                FlaggedList todoList = new FlaggedList(FlaggedList.Yellow, Base.i18n.string("tree.todo"));
-                                FlaggedList fixmeList = new FlaggedList(FlaggedList.Red, Base.i18n.string("tree.fixme"));
+                            int version = loadedSketch.getSymbolsVersion(f);
+                            state.put(f, version * 31 + (tab == -1 ? 0 : System.identityHashCode(getTab(tab))));
+                            break;
+                    }
+                }
 
-                                DefaultMutableTreeNode noteEntries = new DefaultMutableTreeNode(noteList);
-                                DefaultMutableTreeNode todoEntries = new DefaultMutableTreeNode(todoList);
-                                DefaultMutableTreeNode fixmeEntries = new DefaultMutableTreeNode(fixmeList);
+                if (state.keySet().equals(sourceTreeState.keySet()) && treeSource.getChildCount() == state.size()) {
+                    for (int i = 0; i < treeSource.getChildCount(); i++) {
+                        DefaultMutableTreeNode node = (DefaultMutableTreeNode)treeSource.getChildAt(i);
+                        File f = (File)node.getUserObject();
+                        if (loadedSketch.getSymbolsVersion(f) != 0 && state.get(f).equals(sourceTreeState.get(f))) {
+                            continue;
+                        }
+                        node.removeAllChildren();
+                        populateSourceNode(node, f);
+                        treeModel.nodeStructureChanged(sortTree(node));
+                    }
+                    sourceTreeState = state;
+                    restoreTreeState(sketchContentTree, saved);
+                    return;
+                }
 
-                                for (TodoEntry ent : todo) {
-                                    DefaultMutableTreeNode tent = new DefaultMutableTreeNode(ent);
-                                    if (ent.getType() == TodoEntry.Note) {
-                                        noteEntries.add(tent);
-                                        if (eb != null) {
-                                            eb.flagLine(ent.getLine(), Base.getIcon("flags", "note", 16), 0x2000);
-                                        }
-                                    } else if (ent.getType() == TodoEntry.Todo) {
-                                        todoEntries.add(tent);
-                                        if (eb != null) {
-                                            eb.flagLine(ent.getLine(), Base.getIcon("flags", "todo", 16), 0x2000);
-                                        }
-                                    } else if (ent.getType() == TodoEntry.Fixme) {
-                                        fixmeEntries.add(tent);
-                                        if (eb != null) {
-                                            eb.flagLine(ent.getLine(), Base.getIcon("flags", "fixme", 16), 0x2000);
-                                        }
-                                    }
-                                }
-                                if (noteEntries.getChildCount() > 0) {
-                                    node.add(noteEntries);
-                                }
-                                if (todoEntries.getChildCount() > 0) {
-                                    node.add(todoEntries);
-                                }
-                                if (fixmeEntries.getChildCount() > 0) {
-                                    node.add(fixmeEntries);
-                                }
-                            }
+                treeSource.removeAllChildren();
 
-                            break;
-                    }
+                for(File f : state.keySet()) {
+                    DefaultMutableTreeNode node = new DefaultMutableTreeNode(f.getName());
+                    node.setUserObject(f);
+                    treeSource.add(node);
+                    populateSourceNode(node, f);
                 }
 
+                sourceTreeState = state;
                 treeModel.reload(sortTree(treeSource));
                 restoreTreeState(sketchContentTree, saved);
             }
         });
     }
 
+    // Fill in the functions and notes for one file in the source tree, and
+    // flag the notes in the file's tab if it is open.
+    void populateSourceNode(DefaultMutableTreeNode node, File f) {
+        HashMap<Integer, String> funcs = loadedSketch.getFunctionsForFile(f);
+
+        if(funcs != null) {
+            for(int line : funcs.keySet()) {
+                FunctionBookmark b = new FunctionBookmark(f, line, funcs.get(line));
+                DefaultMutableTreeNode fe = new DefaultMutableTreeNode(b);
+                node.add(fe);
+            }
+        }
+        EditorBase eb = null;
+        int tab = getTabByFile(f);
+        if (tab != -1) {
+            eb = getTab(tab);
+            eb.removeFlagGroup(0x2000);
+        }
+
+        ArrayList<TodoEntry> todo = loadedSketch.todo(f);
+        if (todo != null && todo.size() > 0) {
+
+            FlaggedList noteList = new FlaggedList(FlaggedList.Green, Base.i18n.string("tree.notes"));
+            FlaggedList todoList = new FlaggedList(FlaggedList.Yellow, Base.i18n.string("tree.todo"));
+            FlaggedList fixmeList = new FlaggedList(FlaggedList.Red, Base.i18n.string("tree.fixme"));
+
+            DefaultMutableTreeNode noteEntries = new DefaultMutableTreeNode(noteList);
+            DefaultMutableTreeNode todoEntries = new DefaultMutableTreeNode(todoList);
+            DefaultMutableTreeNode fixmeEntries = new DefaultMutableTreeNode(fixmeList);
+
+            for (TodoEntry ent : todo) {
+                DefaultMutableTreeNode tent = new DefaultMutableTreeNode(ent);
+                if (ent.getType() == TodoEntry.Note) {
+                    noteEntries.add(tent);
+                    if (eb != null) {
+                        eb.flagLine(ent.getLine(), Base.getIcon("flags", "note", 16), 0x2000);
+                    }
+                } else if (ent.getType() == TodoEntry.Todo) {
+                    todoEntries.add(tent);
+                    if (eb != null) {
+                        eb.flagLine(ent.getLine(), Base.getIcon("flags", "todo", 16), 0x2000);
+                    }
+                } else if (ent.getType() == TodoEntry.Fixme) {
+                    fixmeEntries.add(tent);
+                    if (eb != null) {
+                        eb.flagLine(ent.getLine(), Base.getIcon("flags", "fixme", 16), 0x2000);
+                    }
+                }
+            }
+            if (noteEntries.getChildCount() > 0) {
+                node.add(noteEntries);
+            }
+            if (todoEntries.getChildCount() > 0) {
+                node.add(todoEntries);
+            }
+            if (fixmeEntries.getChildCount() > 0) {
+                node.add(fixmeEntries);
+            }
+        }
+    }
+
     public DefaultMutableTreeNode sortTree(DefaultMutableTreeNode root) {
         Enumeration e = root.depthFirstEnumeration();
         while(e.hasMoreElements()) {
@@ -2618,6 +2675,22 @@ public class Editor extends JFrame {
         return editorTabs.getTabCount();
     }
 
+    // A quick fingerprint of the text in all the tabs, so the background
+    // services can tell if anything has been typed since they last looked.
+    public int getContentSignature() {
+        int sig = 0;
+        int tabs = getTabCount();
+        for (int i = 0; i < tabs; i++) {
+            EditorBase eb = getTab(i);
+            if (eb == null) {
+                continue;
+            }
+            String text = eb.getText();
+            sig = sig * 31 + (text == null ? 0 : text.hashCode());
+        }
+        return sig;
+    }
+
     public void setTabModified(int t, boolean m) {
         TabLabel tl = getTabLabel(t);
 
@@ -3294,6 +3367,12 @@ public class Editor extends JFrame {
             }
         }));
 
+        debugSubmenu.add(createMenuEntry(Base.i18n.string("menu.help.debug.saves"), 0, 0, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                PropertyWriter.open(Editor.this);
+            }
+        }));
+
         Base.setFont(debugSubmenu, "menu.entry");
         helpMenu.add(debugSubmenu);
 
@@ -3392,6 +3471,7 @@ public class Editor extends JFrame {
     ButtonGroup boardMenuButtonGroup;
 
     public void populateProgrammersMenu(JMenu menu) {
+        long start = System.currentTimeMillis();
         menu.removeAll();
         ButtonGroup progGroup = new ButtonGroup();
 
@@ -3430,9 +3510,11 @@ public class Editor extends JFrame {
             Base.setFont(item, "menu.entry");
             menu.add(item);
         }
+        Debug.message("Built programmers menu (" + progs.length + " entries) in " + (System.currentTimeMillis() - start) + "ms");
     }
 
     public void populateBoardsMenu(JMenu menu) {
+        long start = System.currentTimeMillis();
         boardMenuButtonGroup = new ButtonGroup();
         String[] groups = getBoardGroups();
 
@@ -3449,6 +3531,7 @@ public class Editor extends JFrame {
                 menu.add(groupmenu);
             }
         }
+        Debug.message("Built boards menu (" + Base.boards.size() + " boards) in " + (System.currentTimeMillis() - start) + "ms");
     }
 
 
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Watches the sketch, library and hardware folders for changes and tells
+// anyone who is interested.  Editors and the like tend to write files in
+// bursts (write a temp file, rename it, touch the folder...) so the events are
+// gathered up until things have been quiet for a short while, and then handed
+// out as one batch of changed files per folder type.
+//
+// If the platform can't watch files (no WatchService available) isAvailable()
+// returns false and the services go back to polling the way they used to.
+
+public class FileWatcher implements Runnable {
+
+    public static final int SKETCH = 1;
+    public static final int LIBRARY = 2;
+    public static final int HARDWARE = 3;
+
+    // How long things must be quiet before a batch is sent out.
+    static final long SETTLE_TIME = 300;
+
+    public static interface Listener {
+        // Called on the watcher thread with the files (or folders) that changed.
+        // If the system lost track of events the folder being watched is
+        // given instead, and the listener should assume anything in it changed.
+        public void filesChanged(int type, Set<File> files);
+    }
+
+    static class Watched {
+        Path path;
+        int type;
+        int depth;
+
+        Watched(Path p, int t, int d) {
+            path = p;
+            type = t;
+            depth = d;
+        }
+    }
+
+    static FileWatcher watcher = null;
+    static boolean failed = false;
+
+    WatchService service;
+    Thread thread;
+
+    HashMap<WatchKey, Watched> keys = new HashMap<WatchKey, Watched>();
+    HashMap<Path, WatchKey> paths = new HashMap<Path, WatchKey>();
+
+    CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    HashMap<Integer, HashSet<File>> pending = new HashMap<Integer, HashSet<File>>();
+    long lastEvent = 0;
+
+    FileWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this, "File watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized FileWatcher getWatcher() {
+        if (watcher == null && !failed) {
+            try {
+                watcher = new FileWatcher();
+            } catch (Exception e) {
+                Debug.message("File watching not available: " + e.getMessage());
+                failed = true;
+            }
+        }
+        return watcher;
+    }
+
+    public static boolean isAvailable() {
+        return getWatcher() != null;
+    }
+
+    public static void addListener(Listener l) {
+        FileWatcher w = getWatcher();
+        if (w != null) {
+            w.listeners.addIfAbsent(l);
+        }
+    }
+
+    public static void removeListener(Listener l) {
+        FileWatcher w = getWatcher();
+        if (w != null) {
+            w.listeners.remove(l);
+        }
+    }
+
+    // Start watching a folder.  A depth of 1 watches just the folder itself,
+    // 2 watches it and the folders directly within it, and so on.  Folders
+    // that get created later within that depth are picked up as they appear.
+    public static void watch(File folder, int type, int depth) {
+        FileWatcher w = getWatcher();
+        if (w == null || folder == null || !folder.isDirectory()) {
+            return;
+        }
+        w.register(folder.toPath().toAbsolutePath().normalize(), type, depth);
+    }
+
+    // Stop watching a folder, and anything within it.
+    public static void unwatch(File folder) {
+        FileWatcher w = getWatcher();
+        if (w == null || folder == null) {
+            return;
+        }
+        w.unregister(folder.toPath().toAbsolutePath().normalize());
+    }
+
+    public static boolean isWatched(File folder) {
+        FileWatcher w = getWatcher();
+        if (w == null || folder == null) {
+            return false;
+        }
+        synchronized (w.keys) {
+            return w.paths.containsKey(folder.toPath().toAbsolutePath().normalize());
+        }
+    }
+
+    void register(Path path, int type, int depth) {
+        if (depth < 1) {
+            return;
+        }
+
+        synchronized (keys) {
+            WatchKey key = paths.get(path);
+            Watched w = key == null ? null : keys.get(key);
+            if (w != null && w.type == type && w.depth >= depth) {
+                return;
+            }
+
+            try {
+                if (key == null) {
+                    key = path.register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                    paths.put(path, key);
+                }
+                keys.put(key, new Watched(path, type, depth));
+            } catch (IOException e) {
+                Debug.message("Unable to watch " + path + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        if (depth > 1) {
+            File[] list = path.toFile().listFiles();
+            if (list == null) {
+                return;
+            }
+            for (File f : list) {
+                if (f.isDirectory() && !f.getName().startsWith(".")) {
+                    register(f.toPath(), type, depth - 1);
+                }
+            }
+        }
+    }
+
+    void unregister(Path path) {
+        synchronized (keys) {
+            Iterator<Map.Entry<Path, WatchKey>> it = paths.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, WatchKey> e = it.next();
+                if (e.getKey().startsWith(path)) {
+                    e.getValue().cancel();
+                    keys.remove(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                if (pending.isEmpty()) {
+                    key = service.take();
+                } else {
+                    long wait = lastEvent + SETTLE_TIME - System.currentTimeMillis();
+                    key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+            } catch (InterruptedException e) {
+                continue;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key != null) {
+                gather(key);
+                lastEvent = System.currentTimeMillis();
+            } else if (!pending.isEmpty()) {
+                publish();
+            }
+        }
+    }
+
+    void gather(WatchKey key) {
+        Watched w;
+        synchronized (keys) {
+            w = keys.get(key);
+        }
+
+        if (w == null) {
+            key.cancel();
+            return;
+        }
+
+        HashSet<File> files = pending.get(w.type);
+        if (files == null) {
+            files = new HashSet<File>();
+            pending.put(w.type, files);
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                files.add(w.path.toFile());
+                continue;
+            }
+
+            Path child = w.path.resolve((Path)event.context());
+            files.add(child.toFile());
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && w.depth > 1 && Files.isDirectory(child)) {
+                register(child, w.type, w.depth - 1);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                synchronized (keys) {
+                    if (paths.containsKey(child)) {
+                        unregister(child);
+                    }
+                }
+            }
+        }
+
+        if (!key.reset()) {
+            synchronized (keys) {
+                keys.remove(key);
+                paths.remove(w.path);
+            }
+        }
+    }
+
+    void publish() {
+        HashMap<Integer, HashSet<File>> batch = pending;
+        pending = new HashMap<Integer, HashSet<File>>();
+
+        for (Map.Entry<Integer, HashSet<File>> e : batch.entrySet()) {
+            Set<File> files = Collections.unmodifiableSet(e.getValue());
+            for (Listener l : listeners) {
+                try {
+                    l.filesChanged(e.getKey(), files);
+                } catch (Exception ex) {
+                    Base.error(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+// A quick and simple way of finding out what files a source file includes,
+// without having to run it through the compiler's preprocessor.
+//
+// Comments are removed and the #include lines picked out.  Conditional blocks
+// that are definitely never compiled (#if 0, or the #else of an #if 1) are
+// skipped.  Includes inside blocks that depend on a macro are kept, but marked
+// as conditional, since we can't tell if the real preprocessor would use them.
+// An #ifndef followed straight away by a #define of the same name is taken to be
+// an include guard and doesn't count.  An #include of a macro can't be worked out
+// at all, in which case null is returned and the caller has to fall back to using
+// the real preprocessor.
+//
+// Results are cached by a hash of the file content, and for files on disk by
+// their path, size and modification time so unchanged files aren't even read.
+
+public class IncludeScanner {
+
+    static final int MAX_CACHE = 5000;
+
+    static final Pattern includePattern = Pattern.compile("^#\\s*include\\s*([<\"])([^>\"]+)[>\"]");
+    static final Pattern directivePattern = Pattern.compile("^#\\s*(\\w+)\\s*(.*)$");
+
+    static ConcurrentHashMap<String, ArrayList<Include>> byHash = new ConcurrentHashMap<String, ArrayList<Include>>();
+    static ConcurrentHashMap<String, Stamp> byFile = new ConcurrentHashMap<String, Stamp>();
+
+    // Used in the cache in place of null, which ConcurrentHashMap can't hold.
+    static final ArrayList<Include> UNKNOWN = new ArrayList<Include>();
+
+    public static class Include {
+        public String name;
+        public boolean quoted;
+        public boolean conditional;
+
+        Include(String n, boolean q, boolean c) {
+            name = n;
+            quoted = q;
+            conditional = c;
+        }
+    }
+
+    static class Stamp {
+        long size;
+        long modified;
+        String hash;
+    }
+
+    // Find the includes in a file on disk.
+    public static ArrayList<Include> getIncludes(File f) {
+        String path = f.getAbsolutePath();
+        Stamp s = byFile.get(path);
+        if (s != null && s.size == f.length() && s.modified == f.lastModified()) {
+            ArrayList<Include> incs = byHash.get(s.hash);
+            if (incs != null) {
+                return incs == UNKNOWN ? null : incs;
+            }
+        }
+
+        String content = readFile(f);
+        if (content == null) {
+            return new ArrayList<Include>();
+        }
+
+        s = new Stamp();
+        s.size = f.length();
+        s.modified = f.lastModified();
+        s.hash = DependencyDatabase.hash(content);
+
+        if (byFile.size() >= MAX_CACHE) {
+            byFile.clear();
+        }
+        byFile.put(path, s);
+
+        return getIncludes(content, s.hash);
+    }
+
+    // Find the includes in some source code.
+    public static ArrayList<Include> getIncludes(String content) {
+        return getIncludes(content, DependencyDatabase.hash(content));
+    }
+
+    static ArrayList<Include> getIncludes(String content, String hash) {
+        ArrayList<Include> incs = byHash.get(hash);
+        if (incs == null) {
+            incs = parse(content);
+            if (incs == null) {
+                incs = UNKNOWN;
+            }
+            if (byHash.size() >= MAX_CACHE) {
+                byHash.clear();
+            }
+            byHash.put(hash, incs);
+        }
+        return incs == UNKNOWN ? null : incs;
+    }
+
+    // Conditional block states.
+    static final int ACTIVE = 0;        // Might be compiled
+    static final int SKIP = 1;          // Definitely not compiled (yet)
+    static final int TAKEN = 2;         // A definitely compiled branch has been seen
+    static final int DEAD = 3;          // Inside a block that isn't compiled at all
+
+    static ArrayList<Include> parse(String content) {
+        ArrayList<Include> incs = new ArrayList<Include>();
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        int skipping = 0;
+        String guard = null;
+
+        for (String line : stripComments(content).split("\n")) {
+            line = line.trim();
+            if (!line.startsWith("#")) {
+                continue;
+            }
+
+            Matcher m = directivePattern.matcher(line);
+            if (!m.find()) {
+                continue;
+            }
+
+            String directive = m.group(1);
+            String arg = m.group(2).trim();
+
+            // #ifndef X then #define X is an include guard, which is always compiled
+            // the first time round.
+            String lastGuard = guard;
+            guard = null;
+            if (lastGuard != null && directive.equals("define") && lastGuard.equals(firstWord(arg))) {
+                stack.set(stack.size() - 1, TAKEN);
+                continue;
+            }
+
+            if (directive.equals("if") || directive.equals("ifdef") || directive.equals("ifndef")) {
+                int state;
+                if (skipping > 0) {
+                    state = DEAD;
+                } else if (directive.equals("if") && isFalse(arg)) {
+                    state = SKIP;
+                } else if (directive.equals("if") && isTrue(arg)) {
+                    state = TAKEN;
+                } else {
+                    state = ACTIVE;
+                }
+                stack.add(state);
+                if (state == SKIP || state == DEAD) {
+                    skipping++;
+                }
+                if (state == ACTIVE && directive.equals("ifndef")) {
+                    guard = firstWord(arg);
+                }
+                continue;
+            }
+
+            if (directive.equals("elif") || directive.equals("else")) {
+                if (stack.size() == 0) {
+                    continue;
+                }
+                int state = stack.get(stack.size() - 1);
+                int newState = state;
+
+                if (state == SKIP) {
+                    if (directive.equals("else") || isTrue(arg)) {
+                        newState = TAKEN;
+                    } else if (!isFalse(arg)) {
+                        newState = ACTIVE;
+                    }
+                } else if (state == TAKEN) {
+                    newState = DEAD;
+                }
+
+                if ((state == SKIP || state == DEAD) && !(newState == SKIP || newState == DEAD)) {
+                    skipping--;
+                } else if (!(state == SKIP || state == DEAD) && (newState == SKIP || newState == DEAD)) {
+                    skipping++;
+                }
+                stack.set(stack.size() - 1, newState);
+                continue;
+            }
+
+            if (directive.equals("endif")) {
+                if (stack.size() == 0) {
+                    continue;
+                }
+                int state = stack.remove(stack.size() - 1);
+                if (state == SKIP || state == DEAD) {
+                    skipping--;
+                }
+                continue;
+            }
+
+            if (skipping > 0) {
+                continue;
+            }
+
+            if (directive.equals("include")) {
+                Matcher im = includePattern.matcher(line);
+                if (!im.find()) {
+                    // Something like #include SOME_MACRO.  Can't help with that.
+                    return null;
+                }
+                incs.add(new Include(im.group(2).trim(), im.group(1).equals("\""), stack.contains(ACTIVE)));
+            }
+        }
+
+        return incs;
+    }
+
+    static String firstWord(String arg) {
+        int sp = 0;
+        while (sp < arg.length() && !Character.isWhitespace(arg.charAt(sp)) && arg.charAt(sp) != '(') {
+            sp++;
+        }
+        return arg.substring(0, sp);
+    }
+
+    static boolean isFalse(String arg) {
+        return arg.equals("0") || arg.equals("false");
+    }
+
+    static boolean isTrue(String arg) {
+        return arg.equals("1") || arg.equals("true");
+    }
+
+    // Remove comments, leaving the line breaks where they were.  Strings and
+    // character constants are left alone so comment markers in them are ignored.
+    static String stripComments(String data) {
+        StringBuilder out = new StringBuilder(data.length());
+        int len = data.length();
+        int i = 0;
+
+        while (i < len) {
+            char c = data.charAt(i);
+            char n = (i + 1 < len) ? data.charAt(i + 1) : 0;
+
+            if (c == '/' && n == '/') {
+                while (i < len && data.charAt(i) != '\n') {
+                    i++;
+                }
+                continue;
+            }
+
+            if (c == '/' && n == '*') {
+                i += 2;
+                while (i < len && !(data.charAt(i) == '*' && i + 1 < len && data.charAt(i + 1) == '/')) {
+                    if (data.charAt(i) == '\n') {
+                        out.append('\n');
+                    }
+                    i++;
+                }
+                i += 2;
+                out.append(' ');
+                continue;
+            }
+
+            if (c == '"' || c == '\'') {
+                out.append(c);
+                i++;
+                while (i < len && data.charAt(i) != c && data.charAt(i) != '\n') {
+                    if (data.charAt(i) == '\\' && i + 1 < len) {
+                        out.append(data.charAt(i));
+                        i++;
+                    }
+                    out.append(data.charAt(i));
+                    i++;
+                }
+                if (i < len && data.charAt(i) == c) {
+                    out.append(c);
+                    i++;
+                }
+                continue;
+            }
+
+            out.append(c);
+            i++;
+        }
+
+        return out.toString();
+    }
+
+    static String readFile(File f) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                sb.append(buf, 0, n);
+            }
+            in.close();
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
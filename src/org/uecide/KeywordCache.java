@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+// Parsed keywords.txt files, kept by path and only read again when the file's
+// size or modification time changes.  The tables handed out must not be
+// changed - copy them first.
+
+public class KeywordCache {
+
+    static final Pattern keywordPattern = Pattern.compile("^\\s*([^\\s]+)\\s+([^\\s]+)");
+
+    static final HashMap<String, Integer> types = new HashMap<String, Integer>();
+    static {
+        types.put("LITERAL1", KeywordTypes.LITERAL1);
+        types.put("LITERAL2", KeywordTypes.LITERAL2);
+        types.put("LITERAL3", KeywordTypes.LITERAL3);
+        types.put("KEYWORD1", KeywordTypes.KEYWORD1);
+        types.put("KEYWORD2", KeywordTypes.KEYWORD2);
+        types.put("KEYWORD3", KeywordTypes.KEYWORD3);
+        types.put("OBJECT", KeywordTypes.OBJECT);
+        types.put("VARIABLE", KeywordTypes.VARIABLE);
+        types.put("FUNCTION", KeywordTypes.FUNCTION);
+        types.put("DATATYPE", KeywordTypes.DATATYPE);
+        types.put("RESERVED", KeywordTypes.RESERVED);
+    }
+
+    static final Map<String, Integer> EMPTY = Collections.unmodifiableMap(new HashMap<String, Integer>());
+
+    static class Table {
+        long size;
+        long modified;
+        Map<String, Integer> keywords;
+    }
+
+    static ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+    public static Map<String, Integer> getKeywords(File f) {
+        if (f == null || !f.isFile()) {
+            return EMPTY;
+        }
+
+        String path = f.getAbsolutePath();
+        long size = f.length();
+        long modified = f.lastModified();
+
+        Table t = tables.get(path);
+        if (t != null && t.size == size && t.modified == modified) {
+            return t.keywords;
+        }
+
+        t = new Table();
+        t.size = size;
+        t.modified = modified;
+        t.keywords = Collections.unmodifiableMap(parse(Base.getFileAsString(f)));
+        tables.put(path, t);
+        return t.keywords;
+    }
+
+    static HashMap<String, Integer> parse(String kwd) {
+        HashMap<String, Integer> keywords = new HashMap<String, Integer>();
+        String[] lines = kwd.split("\n");
+        for (String line : lines) {
+            Matcher m = keywordPattern.matcher(line);
+            if (m.find()) {
+                Integer type = types.get(m.group(2));
+                if (type != null) {
+                    keywords.put(m.group(1), type);
+                }
+            }
+        }
+        return keywords;
+    }
+
+    public static void clear() {
+        tables.clear();
+    }
+}
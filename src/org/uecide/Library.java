@@ -39,6 +39,7 @@ import java.beans.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import javax.swing.*;
@@ -62,7 +63,7 @@ public class Library implements Comparable {
     public int compiledPercent = 0;
     public File sourceFolder;
     public File archFolder;
-    public boolean needsRescan = true;
+    public volatile boolean needsRescan = true;
 
     public HashMap<String, TreeSet<File>>sourceFilesByArch = null;
     public HashMap<String, TreeSet<File>>headerFilesByArch = null;
@@ -71,6 +72,17 @@ public class Library implements Comparable {
 
     public boolean buildLibrary = false;
 
+    // Where this library comes in the library list, for LibraryIndex.  Libraries
+    // that aren't in the list (such as ones local to a sketch) stay at -1.
+    int order = -1;
+    static int nextOrder = 0;
+
+    // The header files keyed by name, for quick lookups.
+    HashMap<String, File> headersByName = new HashMap<String, File>();
+
+    ArrayList<File> scannedFolders = new ArrayList<File>();
+    boolean archScanned = false;
+
     PropertyFile properties = null;
     File propertyFile = null;
 
@@ -145,51 +157,140 @@ public class Library implements Comparable {
         valid = false;
     }
 
-    public void rescan() {
+    // Scan the library's files.  Each folder is listed just the once and the files
+    // sorted out by their extension as we go.  The examples and the per-arch file
+    // lists aren't needed very often so they are left until something asks for
+    // them.
+    public synchronized void rescan() {
         requiredLibraries = new ArrayList<String>();
         sourceFiles = new TreeSet<File>();
         archiveFiles = new TreeSet<File>();
         headerFiles = new TreeSet<File>();
-        examples = new TreeMap<String, File>();
+        scannedFolders = new ArrayList<File>();
 
-        sourceFiles.addAll(Sketch.findFilesInFolder(sourceFolder, "cpp", false));
-        sourceFiles.addAll(Sketch.findFilesInFolder(sourceFolder, "c", false));
-        sourceFiles.addAll(Sketch.findFilesInFolder(sourceFolder, "S", false));
-        archiveFiles.addAll(Sketch.findFilesInFolder(sourceFolder, "a", false));
-        headerFiles.addAll(Sketch.findFilesInFolder(sourceFolder, "h", false));
-
-        if (archFolder != null) {
-            if (archFolder.exists()) {
-                File[] arches = archFolder.listFiles();
-                sourceFilesByArch = new HashMap<String, TreeSet<File>>();
-                headerFilesByArch = new HashMap<String, TreeSet<File>>();
-                for (File arch : arches) {
-                    if (arch.getName().startsWith(".")) {
-                        continue;
-                    }
-                    if (arch.isDirectory()) {
-                        TreeSet<File>afiles = new TreeSet<File>();
-                        TreeSet<File>hfiles = new TreeSet<File>();
-                        afiles.addAll(Sketch.findFilesInFolder(arch, "cpp", false));
-                        afiles.addAll(Sketch.findFilesInFolder(arch, "c", false));
-                        afiles.addAll(Sketch.findFilesInFolder(arch, "S", false));
-                        hfiles.addAll(Sketch.findFilesInFolder(arch, "h", false));
-                        sourceFilesByArch.put(arch.getName(), afiles);
-                        headerFilesByArch.put(arch.getName(), hfiles);
-                    }
+        scannedFolders.add(sourceFolder);
+        classifyFiles(sourceFolder, false, sourceFiles, headerFiles, archiveFiles);
+
+        scannedFolders.add(utilityFolder);
+        if(utilityFolder.exists() && utilityFolder.isDirectory()) {
+            classifyFiles(utilityFolder, utilRecurse, sourceFiles, headerFiles, archiveFiles);
+        }
+
+        examples = null;
+        sourceFilesByArch = null;
+        headerFilesByArch = null;
+        archScanned = false;
+
+        headersByName = new HashMap<String, File>();
+        for (File f : headerFiles) {
+            if (!headersByName.containsKey(f.getName())) {
+                headersByName.put(f.getName(), f);
+            }
+        }
+
+        needsRescan = false;
+
+        LibraryIndex.update(this);
+
+        probedFiles = new ArrayList<String>();
+/*
+        for(File f : headerFiles) {
+            gatherIncludes(f);
+        }
+
+        for(File f : sourceFiles) {
+            gatherIncludes(f);
+        }
+*/
+    }
+
+    // Make sure the library has been scanned before looking at its files.
+    synchronized void ensureScanned() {
+        if (needsRescan) {
+            rescan();
+        }
+    }
+
+    // Sort the files in a folder (and optionally its subfolders) into sources,
+    // headers and archives.  Hidden files and folders are skipped.  Any folders
+    // that get walked into are added to scannedFolders.
+    void classifyFiles(File folder, boolean recurse, TreeSet<File> sources, TreeSet<File> headers, TreeSet<File> archives) {
+        File[] list = folder.listFiles();
+
+        if (list == null) {
+            return;
+        }
+
+        for (File f : list) {
+            String n = f.getName();
+
+            if (n.startsWith(".")) {
+                continue;
+            }
+
+            if (f.isDirectory()) {
+                if (recurse) {
+                    scannedFolders.add(f);
+                    classifyFiles(f, recurse, sources, headers, archives);
                 }
+                continue;
             }
+
+            if (n.endsWith(".cpp") || n.endsWith(".c") || n.endsWith(".S")) {
+                if (sources != null) {
+                    sources.add(f);
+                }
+            } else if (n.endsWith(".h")) {
+                headers.add(f);
+            } else if (n.endsWith(".a")) {
+                if (archives != null) {
+                    archives.add(f);
+                }
+            }
+        }
+    }
+
+    synchronized void scanArches() {
+        ensureScanned();
+
+        if (archScanned) {
+            return;
         }
+        archScanned = true;
 
-        if(utilityFolder.exists() && utilityFolder.isDirectory()) {
-            sourceFiles.addAll(Sketch.findFilesInFolder(utilityFolder, "cpp", utilRecurse));
-            sourceFiles.addAll(Sketch.findFilesInFolder(utilityFolder, "c", utilRecurse));
-            sourceFiles.addAll(Sketch.findFilesInFolder(utilityFolder, "S", utilRecurse));
-            archiveFiles.addAll(Sketch.findFilesInFolder(utilityFolder, "a", utilRecurse));
-            headerFiles.addAll(Sketch.findFilesInFolder(utilityFolder, "h", utilRecurse));
+        if (archFolder == null || !archFolder.exists()) {
+            return;
+        }
+
+        File[] arches = archFolder.listFiles();
+        if (arches == null) {
+            return;
         }
 
-        if(examplesFolder.exists() && examplesFolder.isDirectory()) {
+        sourceFilesByArch = new HashMap<String, TreeSet<File>>();
+        headerFilesByArch = new HashMap<String, TreeSet<File>>();
+        for (File arch : arches) {
+            if (arch.getName().startsWith(".")) {
+                continue;
+            }
+            if (arch.isDirectory()) {
+                TreeSet<File>afiles = new TreeSet<File>();
+                TreeSet<File>hfiles = new TreeSet<File>();
+                classifyFiles(arch, false, afiles, hfiles, null);
+                sourceFilesByArch.put(arch.getName(), afiles);
+                headerFilesByArch.put(arch.getName(), hfiles);
+            }
+        }
+    }
+
+    public synchronized TreeMap<String, File> getExamples() {
+        if (examples != null) {
+            return examples;
+        }
+
+        examples = new TreeMap<String, File>();
+
+        if(examplesFolder != null && examplesFolder.exists() && examplesFolder.isDirectory()) {
             File[] list = examplesFolder.listFiles();
 
             for(File f : list) {
@@ -210,38 +311,26 @@ public class Library implements Comparable {
             }
         }
 
-        probedFiles = new ArrayList<String>();
-/*
-        for(File f : headerFiles) {
-            gatherIncludes(f);
-        }
-
-        for(File f : sourceFiles) {
-            gatherIncludes(f);
-        }
-*/
+        return examples;
     }
 
     ArrayList<String> probedFiles;
 
     public boolean hasHeader(String header) {
-        for(File f : headerFiles) {
-            if(f.getName().equals(header)) {
-                return true;
-            }
-        }
-
-        return false;
+        ensureScanned();
+        return headersByName.containsKey(header);
     }
 
     public File getHeader(String header) {
-        for(File f : headerFiles) {
-            if(f.getName().equals(header)) {
-                return f;
-            }
-        }
+        ensureScanned();
+        return headersByName.get(header);
+    }
 
-        return null;
+    // The folders that rescan() looked in for header files.  If none of these
+    // have changed then neither has the list of headers.
+    public ArrayList<File> getScannedFolders() {
+        ensureScanned();
+        return scannedFolders;
     }
 
     public void gatherIncludes(File f) {
@@ -336,6 +425,7 @@ public class Library implements Comparable {
     }
 
     public TreeSet<File> getSourceFiles(Sketch s) {
+        scanArches();
         TreeSet<File> sf = new TreeSet<File>();
 
         if (sourceFilesByArch!=null && s != null) {
@@ -353,6 +443,7 @@ public class Library implements Comparable {
     }
 
     public ArrayList<String> getRequiredLibraries() {
+        ensureScanned();
         return requiredLibraries;
     }
 
@@ -406,6 +497,7 @@ public class Library implements Comparable {
     }
 
     public boolean isHeaderOnly() {
+        ensureScanned();
         return sourceFiles.size() == 0;
     }
 
@@ -442,6 +534,9 @@ public class Library implements Comparable {
     public static TreeMap<String, ArrayList<Library>> libraryList = new TreeMap<String, ArrayList<Library>>();
     public static TreeMap<String, String> categoryNames = new TreeMap<String, String>();
 
+    // Held while libraryList is being built or added to.
+    static final Object listLock = new Object();
+
     // A "group" consists of a type and a subtype separated by a colon.  Valid types are:
     // core, compiler, board, cat.  Subtypes are dependant on the type.
     //   core:<core name>
@@ -462,14 +557,36 @@ public class Library implements Comparable {
     }
 
     public static void addLibrary(String group, Library lib) {
-        ArrayList<Library> setData = libraryList.get(group);
+        synchronized (listLock) {
+            ArrayList<Library> setData = libraryList.get(group);
 
-        if(setData == null) {
-            setData = new ArrayList<Library>();
+            if(setData == null) {
+                setData = new ArrayList<Library>();
+            }
+
+            setData.add(lib);
+            libraryList.put(group, setData);
+
+            lib.order = nextOrder++;
         }
+        LibraryIndex.add(lib);
+        lib.watchSources();
+    }
+
+    // How far down a library's source folders are watched for changes.
+    static final int SOURCE_WATCH_DEPTH = 16;
 
-        setData.add(lib);
-        libraryList.put(group, setData);
+    // Watch the folders the library's source files come from.  A library whose
+    // sources are in its top folder already has that watched along with the rest
+    // of its libraries folder, and its examples and the like don't need watching,
+    // so only src and utility folders are watched in full.
+    void watchSources() {
+        if (sourceFolder != null && !sourceFolder.equals(root)) {
+            FileWatcher.watch(sourceFolder, FileWatcher.LIBRARY, SOURCE_WATCH_DEPTH);
+        }
+        if (utilityFolder != null) {
+            FileWatcher.watch(utilityFolder, FileWatcher.LIBRARY, SOURCE_WATCH_DEPTH);
+        }
     }
 
     public static TreeSet<Library> getLibraries(String group) {
@@ -540,6 +657,7 @@ public class Library implements Comparable {
         }
 
         Debug.message("Loading libraries from " + folder.getAbsolutePath());
+        FileWatcher.watch(folder, FileWatcher.LIBRARY, 2);
 
         for(File f : list) {
             if(f.isDirectory()) {
@@ -590,75 +708,113 @@ public class Library implements Comparable {
         }
     }
 
-    // Load all the libraries from everywhere.
+    // When files change within a library it gets scanned again the next time
+    // it is used.  The libraries folders are watched two deep (see
+    // loadLibrariesFromFolder) and each library's source folders all the way down
+    // (see watchSources).  The libraries are copied out under the list lock since
+    // the list may be being rebuilt on another thread.
+    static FileWatcher.Listener libraryWatcher = new FileWatcher.Listener() {
+        public void filesChanged(int type, Set<File> files) {
+            if (type != FileWatcher.LIBRARY) {
+                return;
+            }
 
-    public static void loadLibraries() {
-        libraryList = new TreeMap<String, ArrayList<Library>>();
-        categoryNames = new TreeMap<String, String>();
+            ArrayList<Library> all = new ArrayList<Library>();
+            synchronized (listLock) {
+                for (ArrayList<Library> libs : libraryList.values()) {
+                    all.addAll(libs);
+                }
+            }
 
-        // Start with the compiler.  It's rare that there would be any here.
-        for(Compiler c : Base.compilers.values()) {
-            setCategoryName("compiler:" + c.getName(), c.getDescription());
-            loadLibrariesFromFolder(c.getLibrariesFolder(), "compiler:" + c.getName());
+            for (Library l : all) {
+                String root = l.getFolder().getAbsolutePath() + File.separator;
+                for (File f : files) {
+                    String path = f.getAbsolutePath() + File.separator;
+                    if (path.startsWith(root) || root.startsWith(path)) {
+                        Debug.message("Library " + l.getName() + " changed on disk");
+                        l.needsRescan = true;
+                        break;
+                    }
+                }
+            }
         }
+    };
 
-        // Now we'll do the cores.  This is almost guaranteed to have libraries.
-        for(Core c : Base.cores.values()) {
-            setCategoryName("core:" + c.getName(), c.getDescription());
-            loadLibrariesFromFolder(c.getLibrariesFolder(), "core:" + c.getName(), c.getName());
-        }
+    // Load all the libraries from everywhere.
 
-        // And now boards.
-        for(Board c : Base.boards.values()) {
-            setCategoryName("board:" + c.getName(), c.getDescription());
-            loadLibrariesFromFolder(c.getLibrariesFolder(), "core:" + c.getName());
-        }
+    public static void loadLibraries() {
+        // The list is filled in while holding the lock so the file watcher never
+        // sees it half built.
+        synchronized (listLock) {
+            libraryList = new TreeMap<String, ArrayList<Library>>();
+            categoryNames = new TreeMap<String, String>();
+            LibraryIndex.clear();
+            FileWatcher.addListener(libraryWatcher);
+
+            // Start with the compiler.  It's rare that there would be any here.
+            for(Compiler c : Base.compilers.values()) {
+                setCategoryName("compiler:" + c.getName(), c.getDescription());
+                loadLibrariesFromFolder(c.getLibrariesFolder(), "compiler:" + c.getName());
+            }
+
+            // Now we'll do the cores.  This is almost guaranteed to have libraries.
+            for(Core c : Base.cores.values()) {
+                setCategoryName("core:" + c.getName(), c.getDescription());
+                loadLibrariesFromFolder(c.getLibrariesFolder(), "core:" + c.getName(), c.getName());
+            }
 
-        int foundCats = 0;
+            // And now boards.
+            for(Board c : Base.boards.values()) {
+                setCategoryName("board:" + c.getName(), c.getDescription());
+                loadLibrariesFromFolder(c.getLibrariesFolder(), "core:" + c.getName());
+            }
+
+            int foundCats = 0;
 
-        // And finally let's work through the categories.
+            // And finally let's work through the categories.
 
-        PropertyFile liblocs = Base.preferences.getChildren("locations.library");
+            PropertyFile liblocs = Base.preferences.getChildren("locations.library");
 
-        for (String k : liblocs.childKeys()) {
-            String cName = liblocs.get(k + ".name");
-            String cPath = liblocs.get(k + ".path");
-            if (cName != null && cPath != null) {
-                File f = new File(cPath);
-                if (f.exists() && f.isDirectory()) {
-                    setCategoryName("cat:" + k, cName);
-                    loadLibrariesFromFolder(f, "cat:" + k);
-                    foundCats++;
+            for (String k : liblocs.childKeys()) {
+                String cName = liblocs.get(k + ".name");
+                String cPath = liblocs.get(k + ".path");
+                if (cName != null && cPath != null) {
+                    File f = new File(cPath);
+                    if (f.exists() && f.isDirectory()) {
+                        setCategoryName("cat:" + k, cName);
+                        loadLibrariesFromFolder(f, "cat:" + k);
+                        foundCats++;
+                    }
                 }
             }
-        }
 
-        if(foundCats == 0) {
-            File f = new File(Base.getSketchbookFolder(), "libraries");
-            Preferences.set("locations.library.contributed.name", "Contributed");
-            Preferences.setFile("locations.library.contributed.path", f);
+            if(foundCats == 0) {
+                File f = new File(Base.getSketchbookFolder(), "libraries");
+                Preferences.set("locations.library.contributed.name", "Contributed");
+                Preferences.setFile("locations.library.contributed.path", f);
 
-            if(!f.exists()) {
-                f.mkdirs();
-            }
+                if(!f.exists()) {
+                    f.mkdirs();
+                }
 
-            setCategoryName("cat:contributed", "Contributed");
-            loadLibrariesFromFolder(f, "cat:contributed");
-        }
+                setCategoryName("cat:contributed", "Contributed");
+                loadLibrariesFromFolder(f, "cat:contributed");
+            }
 
-        // And now we have our new repo-based libraries.  First scan
-        // a list of categories and their folders:
+            // And now we have our new repo-based libraries.  First scan
+            // a list of categories and their folders:
 
-        File[] repoLibsList = Base.getLibrariesFolders();
-        for (File repoLibs : repoLibsList) {
-            if (!repoLibs.exists()) {
-                continue;
-            }
-            File[] subcats = repoLibs.listFiles();
-            for (File subcat : subcats) {
-                if ((!subcat.getName().startsWith(".")) && (subcat.isDirectory())) {
-                    setCategoryName("repo:" + subcat.getName(), subcat.getName());
-                    loadLibrariesFromFolder(subcat, "repo:" + subcat.getName());
+            File[] repoLibsList = Base.getLibrariesFolders();
+            for (File repoLibs : repoLibsList) {
+                if (!repoLibs.exists()) {
+                    continue;
+                }
+                File[] subcats = repoLibs.listFiles();
+                for (File subcat : subcats) {
+                    if ((!subcat.getName().startsWith(".")) && (subcat.isDirectory())) {
+                        setCategoryName("repo:" + subcat.getName(), subcat.getName());
+                        loadLibrariesFromFolder(subcat, "repo:" + subcat.getName());
+                    }
                 }
             }
         }
@@ -666,6 +822,7 @@ public class Library implements Comparable {
 //        Thread reScanthread = new Thread() {
 //            public void run() {
         rescanAll();
+        LibraryIndex.save();
 //            }
 //        };
     }
@@ -689,15 +846,7 @@ public class Library implements Comparable {
     }
 
     public static Library getLibraryByName(String name, String core) {
-        for(String group : libraryList.keySet()) {
-            Library l = getLibraryByName(name, core, group);
-
-            if(l != null) {
-                return l;
-            }
-        }
-
-        return null;
+        return LibraryIndex.findByName(name, core);
     }
 
     public static Library getLibraryByInclude(String include, String core) {
@@ -713,17 +862,7 @@ public class Library implements Comparable {
             return lib;
         }
 
-        for(ArrayList<Library> dataSet : libraryList.values()) {
-            for(Library l : dataSet) {
-                if(l.worksWith(core)) {
-                    if(l.hasHeader(include)) {
-                        return l;
-                    }
-                }
-            }
-        }
-
-        return null;
+        return LibraryIndex.findByHeader(include, core);
     }
 
     public synchronized static TreeSet<String> getLibraryCategories() {
@@ -777,6 +916,7 @@ public class Library implements Comparable {
     }
 
     public ArrayList<File> getIncludeFolders(Sketch s) {
+        scanArches();
         ArrayList<File> folders = new ArrayList<File>();
         folders.add(sourceFolder);
 
@@ -815,15 +955,51 @@ public class Library implements Comparable {
         return sourceFolder;
     }
 
+    static ExecutorService scanPool = null;
+
+    static synchronized ExecutorService getScanPool() {
+        if (scanPool == null) {
+            int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+            scanPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Library scanner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scanPool;
+    }
+
+    // Scan any libraries that are new or have changed since they were last scanned
+    // so the header index is right.  Libraries that are already in the index are
+    // left alone until something actually wants to look at their files.  The
+    // scanning is spread over a pool of threads.
     public synchronized static void rescanAll() {
+        ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+        ExecutorService pool = getScanPool();
+
         for (ArrayList<Library> ll : libraryList.values()) {
-            for (Library l : ll) {
-                if (l.needsRescan) {
-                    l.rescan();
-                    l.needsRescan = false;
+            for (final Library l : ll) {
+                if (l.needsRescan && !LibraryIndex.isIndexed(l)) {
+                    jobs.add(pool.submit(new Runnable() {
+                        public void run() {
+                            l.ensureScanned();
+                        }
+                    }));
                 }
             }
         }
+
+        for (Future<?> job : jobs) {
+            try {
+                job.get();
+            } catch (Exception e) {
+                Base.error(e);
+            }
+        }
+
+        Debug.message("Scanned " + jobs.size() + " libraries");
     }
 }
 
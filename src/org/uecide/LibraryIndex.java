@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+// An index of which libraries provide which header files (and which libraries go
+// by which name) so that an #include can be turned into a library without
+// looking through every header of every library.
+//
+// The index is split up by core.  A library either works with all cores (and is
+// filed under "all") or with just the one, so a lookup only ever has to look at
+// two small lists.  If more than one library matches, the one that would have
+// been found first by walking Library.libraryList is picked: lowest group name,
+// then the first one added to that group.
+//
+// The list of headers each library has is also kept on disk in the cache folder,
+// along with the modification times of the folders they were found in, so at the
+// next startup a library whose folders haven't changed goes straight into the
+// index without having to be scanned first.
+
+public class LibraryIndex {
+
+    static final int MAGIC = 0x554c4958;
+    static final int FORMAT = 1;
+
+    static HashMap<String, HashMap<String, ArrayList<Library>>> headers = new HashMap<String, HashMap<String, ArrayList<Library>>>();
+    static HashMap<String, HashMap<String, ArrayList<Library>>> names = new HashMap<String, HashMap<String, ArrayList<Library>>>();
+    static HashMap<Library, ArrayList<String>> indexed = new HashMap<Library, ArrayList<String>>();
+
+    static HashMap<String, Stored> stored = null;
+    static boolean dirty = false;
+
+    // What we know about a library from the last time it was scanned.
+    static class Stored {
+        TreeMap<String, Long> folders = new TreeMap<String, Long>();
+        ArrayList<String> headers = new ArrayList<String>();
+
+        boolean isCurrent() {
+            for (Map.Entry<String, Long> e : folders.entrySet()) {
+                if (new File(e.getKey()).lastModified() != e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Forget all the libraries.  What is stored on disk is kept.
+    public static synchronized void clear() {
+        headers.clear();
+        names.clear();
+        indexed.clear();
+    }
+
+    // A library has been added to the library list.  If we know what headers it
+    // had last time, and nothing has changed, they are added to the index now.
+    public static synchronized void add(Library lib) {
+        file(names, lib.getCore(), lib.getName(), lib);
+
+        Stored s = getStored().get(lib.getFolder().getAbsolutePath());
+        if (s != null && s.isCurrent()) {
+            ArrayList<String> hdrs = new ArrayList<String>();
+            for (String h : s.headers) {
+                hdrs.add(new File(h).getName());
+            }
+            indexHeaders(lib, hdrs);
+        }
+    }
+
+    // A library has been scanned.  Its headers replace whatever we had for it
+    // before, both in the index and on disk.
+    public static synchronized void update(Library lib) {
+        if (lib.order < 0) {
+            return;
+        }
+
+        ArrayList<String> hdrs = new ArrayList<String>();
+        Stored s = new Stored();
+
+        for (File f : lib.headerFiles) {
+            hdrs.add(f.getName());
+            s.headers.add(f.getAbsolutePath());
+        }
+
+        for (File f : lib.getScannedFolders()) {
+            s.folders.put(f.getAbsolutePath(), f.lastModified());
+        }
+
+        indexHeaders(lib, hdrs);
+        getStored().put(lib.getFolder().getAbsolutePath(), s);
+        dirty = true;
+    }
+
+    // True if the library's headers are in the index, either from being scanned
+    // or from what was stored on disk.
+    public static synchronized boolean isIndexed(Library lib) {
+        return indexed.containsKey(lib);
+    }
+
+    public static synchronized Library findByName(String name, String core) {
+        return pick(names, name, core);
+    }
+
+    public static synchronized Library findByHeader(String header, String core) {
+        return pick(headers, header, core);
+    }
+
+    static void indexHeaders(Library lib, ArrayList<String> hdrs) {
+        ArrayList<String> old = indexed.remove(lib);
+        if (old != null) {
+            HashMap<String, ArrayList<Library>> map = headers.get(lib.getCore());
+            for (String h : old) {
+                ArrayList<Library> libs = map.get(h);
+                if (libs != null) {
+                    libs.remove(lib);
+                    if (libs.size() == 0) {
+                        map.remove(h);
+                    }
+                }
+            }
+        }
+
+        for (String h : hdrs) {
+            file(headers, lib.getCore(), h, lib);
+        }
+        indexed.put(lib, hdrs);
+    }
+
+    static void file(HashMap<String, HashMap<String, ArrayList<Library>>> index, String core, String key, Library lib) {
+        HashMap<String, ArrayList<Library>> map = index.get(core);
+        if (map == null) {
+            map = new HashMap<String, ArrayList<Library>>();
+            index.put(core, map);
+        }
+        ArrayList<Library> libs = map.get(key);
+        if (libs == null) {
+            libs = new ArrayList<Library>(1);
+            map.put(key, libs);
+        }
+        if (!libs.contains(lib)) {
+            libs.add(lib);
+        }
+    }
+
+    static Library pick(HashMap<String, HashMap<String, ArrayList<Library>>> index, String key, String core) {
+        Library best = null;
+        best = pick(index.get(core), key, best);
+        if (!core.equals("all")) {
+            best = pick(index.get("all"), key, best);
+        }
+        return best;
+    }
+
+    static Library pick(HashMap<String, ArrayList<Library>> map, String key, Library best) {
+        if (map == null) {
+            return best;
+        }
+        ArrayList<Library> libs = map.get(key);
+        if (libs == null) {
+            return best;
+        }
+        for (Library l : libs) {
+            if (best == null || comesBefore(l, best)) {
+                best = l;
+            }
+        }
+        return best;
+    }
+
+    static boolean comesBefore(Library a, Library b) {
+        int c = a.getType().compareTo(b.getType());
+        if (c != 0) {
+            return c < 0;
+        }
+        return a.order < b.order;
+    }
+
+    static File getIndexFile() {
+        return new File(Base.getCacheFolder(), "libraries.index");
+    }
+
+    static HashMap<String, Stored> getStored() {
+        if (stored == null) {
+            stored = load();
+        }
+        return stored;
+    }
+
+    static HashMap<String, Stored> load() {
+        HashMap<String, Stored> data = new HashMap<String, Stored>();
+        File f = getIndexFile();
+        if (!f.exists()) {
+            return data;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                    return data;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String root = DefinitionCache.readString(in);
+                    Stored s = new Stored();
+                    int folders = in.readInt();
+                    for (int j = 0; j < folders; j++) {
+                        String path = DefinitionCache.readString(in);
+                        s.folders.put(path, in.readLong());
+                    }
+                    int hdrs = in.readInt();
+                    for (int j = 0; j < hdrs; j++) {
+                        s.headers.add(DefinitionCache.readString(in));
+                    }
+                    data.put(root, s);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Debug.message("Unable to read library index: " + e.getMessage());
+            return new HashMap<String, Stored>();
+        }
+        return data;
+    }
+
+    // Write the stored headers out if anything has changed.  Libraries that no
+    // longer exist are dropped.
+    public static synchronized void save() {
+        if (stored == null) {
+            return;
+        }
+
+        for (String root : stored.keySet().toArray(new String[0])) {
+            if (!new File(root).exists()) {
+                stored.remove(root);
+                dirty = true;
+            }
+        }
+
+        if (!dirty) {
+            return;
+        }
+
+        File f = getIndexFile();
+        File tmp = new File(f.getParentFile(), f.getName() + "." + Thread.currentThread().getId());
+        try {
+            f.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(stored.size());
+            for (Map.Entry<String, Stored> e : stored.entrySet()) {
+                DefinitionCache.writeString(out, e.getKey());
+                Stored s = e.getValue();
+                out.writeInt(s.folders.size());
+                for (Map.Entry<String, Long> fe : s.folders.entrySet()) {
+                    DefinitionCache.writeString(out, fe.getKey());
+                    out.writeLong(fe.getValue());
+                }
+                out.writeInt(s.headers.size());
+                for (String h : s.headers) {
+                    DefinitionCache.writeString(out, h);
+                }
+            }
+            out.close();
+
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    tmp.delete();
+                    return;
+                }
+            }
+            dirty = false;
+        } catch (Exception ex) {
+            tmp.delete();
+            Base.error(ex);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.security.MessageDigest;
+
+// A store of compiled objects shared between all sketches and boards.  Objects are
+// filed by a hash of what went into making them, so the same source compiled with
+// the same command by the same compiler only ever has to be compiled once.
+//
+// Working out the full set of inputs needs the list of headers a file includes,
+// which we only get from the compiler's .d file after compiling it.  So there are
+// two steps to a lookup:
+//
+// 1. The hash of the command and the source file content gives a "manifest" which
+//    lists the headers that were included last time that combination was compiled.
+// 2. The manifest key plus the content of every one of those headers gives the key
+//    of the object itself.
+//
+// Only objects that came with a dependency file are stored.  Without one there's
+// no way of knowing which headers went into an object, and a header change would
+// hand back a stale object.
+//
+// Paths that change from sketch to sketch (the sketch and build folders) are
+// swapped for placeholders in the command, the manifest and the stored dependency
+// file, so objects can be shared between sketches.  The placeholders are turned
+// back into the current sketch's paths when headers are checked and when the
+// dependency file is handed back.
+//
+// Objects and manifests are kept in least recently used order (a hit updates their
+// timestamps) and the oldest are thrown away when the store grows too big.
+
+public class ObjectCache {
+
+    static final String MANIFEST_HEADER = "# uecide object manifest 2";
+
+    static ObjectCache cache = null;
+
+    File root;
+
+    long hits = 0;
+    long misses = 0;
+    long stores = 0;
+
+    ObjectCache(File r) {
+        root = r;
+        root.mkdirs();
+    }
+
+    public static synchronized ObjectCache getCache() {
+        if (cache == null) {
+            cache = new ObjectCache(new File(Base.getCacheFolder(), "objectcache"));
+        }
+        return cache;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    // The key of the manifest for a source file compiled with a command.  The
+    // command should already have had its sketch specific paths swapped out.
+
+    public String getManifestKey(File src, String command) {
+        return DependencyDatabase.hash(command + "\n" + hashFile(src));
+    }
+
+    // Try and find a matching object in the cache.  If there is one it is copied to
+    // the object file (and the dependency file if we have one) and true is returned.
+
+    public boolean fetch(String manifestKey, File obj, File depFile, Map<String, String> paths) {
+        File manifest = getFile(manifestKey, ".manifest");
+        if (!manifest.exists()) {
+            miss();
+            return false;
+        }
+
+        ArrayList<String> deps = readManifest(manifest);
+        if (deps == null) {
+            miss();
+            return false;
+        }
+
+        String key = getObjectKey(manifestKey, deps, paths);
+        if (key == null) {
+            miss();
+            return false;
+        }
+
+        File cached = getFile(key, ".o");
+        File cachedDep = getFile(key, ".d");
+        if (!cached.exists() || !cachedDep.exists()) {
+            miss();
+            return false;
+        }
+
+        Base.copyFile(cached, obj);
+        if (!obj.exists()) {
+            miss();
+            return false;
+        }
+
+        if (depFile != null) {
+            try {
+                writeText(depFile, expand(readText(cachedDep), paths));
+            } catch (Exception e) {
+                obj.delete();
+                miss();
+                return false;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        cached.setLastModified(now);
+        manifest.setLastModified(now);
+        obj.setLastModified(now);
+
+        synchronized (this) {
+            hits++;
+        }
+        return true;
+    }
+
+    // Put a freshly compiled object into the cache.  Objects without a dependency
+    // file are left out.
+
+    public void store(String manifestKey, File src, File obj, File depFile, Map<String, String> paths) {
+        if (depFile == null || !depFile.exists()) {
+            return;
+        }
+
+        ArrayList<String> deps = new ArrayList<String>();
+        for (String dep : DependencyDatabase.parseDepFile(depFile)) {
+            File df = new File(dep);
+            if (!df.isAbsolute()) {
+                df = new File(depFile.getParentFile(), dep);
+            }
+            if (df.getAbsolutePath().equals(src.getAbsolutePath())) {
+                continue;
+            }
+            String name = localise(df.getAbsolutePath(), paths);
+            if (!deps.contains(name)) {
+                deps.add(name);
+            }
+        }
+
+        String key = getObjectKey(manifestKey, deps, paths);
+        if (key == null) {
+            return;
+        }
+
+        try {
+            File manifest = getFile(manifestKey, ".manifest");
+            File tmp = new File(manifest.getParentFile(), manifest.getName() + "." + Thread.currentThread().getId());
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            out.println(MANIFEST_HEADER);
+            for (String dep : deps) {
+                out.println(dep);
+            }
+            out.close();
+            replace(tmp, manifest);
+
+            File dest = getFile(key, ".d");
+            tmp = new File(dest.getParentFile(), dest.getName() + "." + Thread.currentThread().getId());
+            writeText(tmp, localise(readText(depFile), paths));
+            replace(tmp, dest);
+
+            storeCopy(obj, getFile(key, ".o"));
+        } catch (Exception e) {
+            Base.error(e);
+            return;
+        }
+
+        synchronized (this) {
+            stores++;
+        }
+    }
+
+    // Throw away the least recently used objects and manifests until the cache is
+    // no bigger than the given size.
+
+    public synchronized void trim(long maxSize) {
+        ArrayList<File> objects = new ArrayList<File>();
+        long total = 0;
+
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.getName().endsWith(".o") || f.getName().endsWith(".manifest")) {
+                    objects.add(f);
+                    total += f.length();
+                }
+            }
+        }
+
+        if (total <= maxSize) {
+            return;
+        }
+
+        Collections.sort(objects, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long la = a.lastModified();
+                long lb = b.lastModified();
+                return la < lb ? -1 : (la > lb ? 1 : 0);
+            }
+        });
+
+        int removed = 0;
+        for (File f : objects) {
+            if (total <= maxSize) {
+                break;
+            }
+            total -= f.length();
+            String name = f.getName();
+            if (name.endsWith(".o")) {
+                new File(f.getParentFile(), name.substring(0, name.length() - 2) + ".d").delete();
+            }
+            f.delete();
+            removed++;
+        }
+        Debug.message("Object cache: evicted " + removed + " files");
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        stores = 0;
+    }
+
+    public synchronized String getStatistics() {
+        long total = hits + misses;
+        long pct = total == 0 ? 0 : (hits * 100 / total);
+        return "Object cache: " + hits + " hits, " + misses + " misses (" + pct + "%), " + stores + " stored";
+    }
+
+    synchronized void miss() {
+        misses++;
+    }
+
+    String getObjectKey(String manifestKey, ArrayList<String> deps, Map<String, String> paths) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(manifestKey);
+        for (String dep : deps) {
+            String h = hashFile(new File(expand(dep, paths)));
+            if (h == null) {
+                return null;
+            }
+            sb.append("\n");
+            sb.append(dep);
+            sb.append("=");
+            sb.append(h);
+        }
+        return DependencyDatabase.hash(sb.toString());
+    }
+
+    // Read the header list from a manifest.  Manifests from older versions of the
+    // cache (which may have been made without a dependency file) give null.
+
+    ArrayList<String> readManifest(File manifest) {
+        ArrayList<String> deps = new ArrayList<String>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+            String line = in.readLine();
+            if (line == null || !line.equals(MANIFEST_HEADER)) {
+                in.close();
+                return null;
+            }
+            while ((line = in.readLine()) != null) {
+                if (!line.equals("")) {
+                    deps.add(line);
+                }
+            }
+            in.close();
+        } catch (Exception e) {
+            return null;
+        }
+        return deps;
+    }
+
+    // Swap any of the given paths in a string for their placeholders.  The paths
+    // map is placeholder to path, longest path first.
+
+    public static String localise(String s, Map<String, String> paths) {
+        if (paths == null) {
+            return s;
+        }
+        for (Map.Entry<String, String> e : paths.entrySet()) {
+            s = s.replace(e.getValue(), e.getKey());
+        }
+        return s;
+    }
+
+    // Turn placeholders back into the paths they stand for.
+
+    public static String expand(String s, Map<String, String> paths) {
+        if (paths == null) {
+            return s;
+        }
+        for (Map.Entry<String, String> e : paths.entrySet()) {
+            s = s.replace(e.getKey(), e.getValue());
+        }
+        return s;
+    }
+
+    String readText(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    void writeText(File f, String text) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+    }
+
+    File getFile(String key, String ext) {
+        File dir = new File(root, key.substring(0, 2));
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, key + ext);
+    }
+
+    // Copy a file into the cache.  It goes into a temporary file first so other
+    // threads (or other copies of the IDE) never see a half written object.
+
+    void storeCopy(File src, File dest) {
+        File tmp = new File(dest.getParentFile(), dest.getName() + "." + Thread.currentThread().getId());
+        Base.copyFile(src, tmp);
+        replace(tmp, dest);
+    }
+
+    void replace(File tmp, File dest) {
+        if (!tmp.renameTo(dest)) {
+            dest.delete();
+            if (!tmp.renameTo(dest)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public static String hashFile(File f) {
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            InputStream in = new FileInputStream(f);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            in.close();
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
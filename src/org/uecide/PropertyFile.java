@@ -44,7 +44,6 @@ import javax.swing.border.*;
 
 import say.swing.*;
 
-import java.util.Timer;
 
 /*! The PropertyFile class stores a set of key/value pairs.  The keys can be
  *  used verbatim, or traversed and searched in the form of a tree.  Nodes in
@@ -61,6 +60,14 @@ public class PropertyFile {
     File userFile;
     boolean doPlatformOverride = false;
 
+    // Files on disk pulled in with @include, so anything caching the parsed
+    // data (DefinitionCache) can tell when they change.
+    ArrayList<File> includedFiles = new ArrayList<File>();
+
+    // Bumped every time the data changes so anything caching data from
+    // this file (such as Context's merged properties) knows to refresh it.
+    volatile long version = 0;
+
     /*! Create a new PropertyFile from a file on disk.  All properties are loaded and stored from the file. */
     public PropertyFile(File user) {
         this(user, (File)null);
@@ -182,6 +189,17 @@ public class PropertyFile {
         embeddedTypes = new TreeMap<String, String>();
     }
 
+    // Create a PropertyFile for a file on disk from data that has already been
+    // parsed.  The maps are copied.
+    PropertyFile(File user, TreeMap<String, String> data, TreeMap<String, String> emb, TreeMap<String, String> embTypes) {
+        userFile = user;
+        defaultProperties = new TreeMap<String, String>();
+        properties = new TreeMap<String, String>(data);
+        embedded = new TreeMap<String, String>(emb);
+        sources = new TreeMap<String, String>();
+        embeddedTypes = new TreeMap<String, String>(embTypes);
+    }
+
     /*! Create a new PropertyFile from a set of properties stored in a TreeMap<String, String> object. */
     public PropertyFile(TreeMap<String, String>data) {
         userFile = null;
@@ -210,9 +228,12 @@ public class PropertyFile {
             return;
         }
 
-        for(String key : data.keySet()) {
-            set(key, data.get(key));
+        for(Map.Entry<String, String> e : data.entrySet()) {
+            if (e.getValue() != null) {
+                properties.put(e.getKey(), e.getValue());
+            }
         }
+        version++;
     }
 
     /*! Merge the data from an existing PropertyFile into this PropertyFile. */
@@ -221,13 +242,18 @@ public class PropertyFile {
             return;
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            set(key, pf.getProperties().get(key));
-            setSource(key, pf.getSource(key));
+        TreeMap<String, String> data = pf.getProperties();
+        properties.putAll(data);
+
+        // Sources go through getSource() since views keep theirs in the parent.
+        // A key without a source just loses any source it had here.
+        for(String key : data.keySet()) {
+            setMergedSource(key, pf.getSource(key));
         }
 
         embeddedTypes.putAll(pf.getEmbeddedTypes());
         embedded.putAll(pf.getEmbeddedMap());
+        version++;
     }
 
     /*! Merge the data from an existing PropertyFile into this PropertyFile prepending *prefix* on to each key. */
@@ -240,9 +266,19 @@ public class PropertyFile {
             prefix += ".";
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            set(prefix + key, pf.getProperties().get(key));
-            setSource(prefix + key, pf.getSource(key));
+        for(Map.Entry<String, String> e : pf.getProperties().entrySet()) {
+            String key = prefix + e.getKey();
+            properties.put(key, e.getValue());
+            setMergedSource(key, pf.getSource(e.getKey()));
+        }
+        version++;
+    }
+
+    void setMergedSource(String key, String source) {
+        if (source != null) {
+            sources.put(key, source);
+        } else if (!sources.isEmpty()) {
+            sources.remove(key);
         }
     }
 
@@ -255,11 +291,16 @@ public class PropertyFile {
     /*! Save the properties out to the currently registered backing file */
     public void save() {
         if(userFile != null) {
+            PropertyWriter.saved(userFile);
+
+            // Write to a temporary file and swap it in so nobody ever sees a
+            // half written file.
+            File tmp = new File(userFile.getAbsolutePath() + "." + Thread.currentThread().getId());
             try {
                 String[] keylist = properties.keySet().toArray(new String[0]);
                 Arrays.sort(keylist);
 
-                FileWriter w = new FileWriter(userFile);
+                FileWriter w = new FileWriter(tmp);
                 PrintWriter pw = new PrintWriter(w);
                 for (String k : keylist) {
                     String v = properties.get(k);
@@ -277,38 +318,28 @@ public class PropertyFile {
                 pw.close();
                 w.close();
 
+                if (!tmp.renameTo(userFile)) {
+                    userFile.delete();
+                    if (!tmp.renameTo(userFile)) {
+                        tmp.delete();
+                        Base.error("Unable to save " + userFile.getAbsolutePath());
+                        return;
+                    }
+                }
 
                 Debug.message("Saved property file " + userFile.getAbsolutePath());
             } catch(Exception e) {
+                tmp.delete();
                 Base.error(e);
             }
         }
     }
 
-    Timer saveTimer = null;
-
     /*! Save the properties out to the currently registered backing file after a delay of 1 second.  If a save is already pending
-     *  then the new save's delay overrides it extending the delay.
+     *  then the new save's delay overrides it extending the delay.  The saves are all done by one shared writer (see PropertyWriter).
      */
     public void saveDelay() {
-        if(saveTimer != null) {
-            try {
-                saveTimer.cancel();
-            } catch (Exception e) {
-            }
-
-            try {
-                saveTimer.purge();
-            } catch (Exception e) {
-            }
-        }
-
-        saveTimer = new Timer();
-        saveTimer.schedule(new TimerTask() {
-            public void run() {
-                save();
-            }
-        }, 1000);
+        PropertyWriter.saveDelay(this);
     }
 
     /*! Get a String value for the specified key after appending the OS details to the key.
@@ -427,15 +458,18 @@ public class PropertyFile {
         }
 
         properties.put(attribute, value);
+        version++;
     }
 
     /*! Unset a key. If a default exists that value will now be the current value. */
     public void unset(String attribute) {
         properties.remove(attribute);
+        version++;
     }
 
     /*! Remove a key and any children of that key */
     public void removeAll(String key) {
+        version++;
         properties.remove(key);
         String[] keys = properties.keySet().toArray(new String[0]);
         for (String thiskey : keys) {
@@ -689,7 +723,9 @@ public class PropertyFile {
     public TreeMap<String, String> toTreeMap(boolean ps) {
         TreeMap<String, String> map = new TreeMap<String, String>();
 
-        for(String name : properties.keySet()) {
+        TreeMap<String, String> props = getProperties();
+
+        for(String name : props.keySet()) {
             if(ps) {
                 if(name.endsWith("." + Base.getOSFullName())) {
                     name = name.substring(0, name.length() - Base.getOSFullName().length() - 1);
@@ -701,7 +737,7 @@ public class PropertyFile {
 
                 map.put(name, getPlatformSpecific(name));
             } else {
-                map.put(name, properties.get(name));
+                map.put(name, props.get(name));
             }
         }
 
@@ -724,6 +760,7 @@ public class PropertyFile {
                     r.close();
                     fis.close();
                     properties = newProperties;
+                    version++;
                 } catch(Exception e) {
                     Base.error(e);
                 }
@@ -743,15 +780,43 @@ public class PropertyFile {
             path += ".";
         }
 
-        for(String key : properties.keySet()) {
-            if(key.startsWith(path)) {
-                subset.set(key.substring(path.length()), properties.get(key));
-            }
+        for(Map.Entry<String, String> entry : range(path).entrySet()) {
+            subset.set(entry.getKey().substring(path.length()), entry.getValue());
         }
 
         return subset;
     }
 
+    /*! Return a read-only view of all the keys below the provided *path*.  Unlike
+     *  getChildren() nothing is copied - lookups go straight through to this file,
+     *  so the view always reflects the current data.  Any attempt to change the
+     *  view throws an UnsupportedOperationException.
+     */
+    public PropertyFile getChildrenView(String path) {
+        if(path == null || path.equals("")) {
+            return new PropertySubtree(this, "");
+        }
+
+        if(!path.endsWith(".")) {
+            path += ".";
+        }
+
+        return new PropertySubtree(this, path);
+    }
+
+    // All the keys that start with the given prefix.  Keys are kept sorted, so
+    // those are all together in one block, which runs up to (but not including)
+    // the prefix with its last character bumped up by one.
+    NavigableMap<String, String> range(String prefix) {
+        if(prefix.equals("")) {
+            return properties;
+        }
+
+        int last = prefix.length() - 1;
+        String upper = prefix.substring(0, last) + (char)(prefix.charAt(last) + 1);
+        return properties.subMap(prefix, true, upper, false);
+    }
+
     /*! Return the top level of directly descendant child keys.  That is,
      * if the property file contains:
      * * foo.bar
@@ -760,25 +825,44 @@ public class PropertyFile {
      * it will return { "bar", "foo" }.
      */
     public String[] childKeys() {
-        ArrayList<String> keys = new ArrayList<String>();
+        return childKeys(properties, "");
+    }
+
+    // Find the first part of each key in *map* after *prefix*.  Once a child has
+    // been found with children of its own the whole block of its children is
+    // skipped over rather than looking at every key in turn.
+    static String[] childKeys(NavigableMap<String, String> map, String prefix) {
+        TreeSet<String> keys = new TreeSet<String>();
+        int plen = prefix.length();
+
+        String key = map.isEmpty() ? null : map.firstKey();
 
-        for(String key : properties.keySet()) {
-            String[] bits = key.split("\\.");
+        while(key != null) {
+            int dot = key.indexOf('.', plen);
 
-            if(keys.indexOf(bits[0]) == -1) {
-                keys.add(bits[0]);
+            if(dot == -1) {
+                keys.add(key.substring(plen));
+                key = map.higherKey(key);
+            } else {
+                keys.add(key.substring(plen, dot));
+                key = map.ceilingKey(key.substring(0, dot) + "/");
             }
         }
 
-        String[] keyArray = keys.toArray(new String[0]);
-        Arrays.sort(keyArray);
-        return keyArray;
+        return keys.toArray(new String[0]);
     }
 
     /*! Return all the top-level child keys of the given path.  See: childKeys() */
     public String[] childKeysOf(String path) {
-        PropertyFile pf = getChildren(path);
-        return pf.childKeys();
+        if(path == null || path.equals("")) {
+            return childKeys();
+        }
+
+        if(!path.endsWith(".")) {
+            path += ".";
+        }
+
+        return childKeys(range(path), path);
     }
 
     /*! Return the number of elements in the user data set. */
@@ -804,15 +888,10 @@ public class PropertyFile {
             return true;
         }
 
-        for(Object ko : properties.keySet()) {
-            String k = (String)ko;
+        String prefix = key + ".";
+        String next = properties.ceilingKey(prefix);
 
-            if(k.startsWith(key + ".")) {
-                return true;
-            }
-        }
-
-        return false;
+        return next != null && next.startsWith(prefix);
     }
 
     /*! Obtain the best match key for the current operating system. */
@@ -831,19 +910,53 @@ public class PropertyFile {
         return key;
     }
 
+    // The Context used to expand ${...} references in this file's values is
+    // shared by all the callers, along with the values it has expanded.  Both
+    // are thrown away as soon as the file changes.  Values that used a function
+    // variable (${cmd:...}) could come out differently next time, so only those
+    // that are made purely from other keys are kept.
+
+    Context parseContext = null;
+    long parseVersion = -1;
+    HashMap<String, String> parsedValues = new HashMap<String, String>();
+
+    synchronized Context getParseContext() {
+        if (parseContext == null || parseVersion != getVersion()) {
+            parseContext = new Context();
+            parseContext.mergeSettings(this);
+            parsedValues.clear();
+            parseVersion = getVersion();
+        }
+        return parseContext;
+    }
+
     public String getParsed(String key) {
         String data = get(key);
         if (data == null) {
             return null;
         }
-        Context ctx = new Context();
-        ctx.mergeSettings(this);
-        return ctx.parseString(data);
+        if (data.indexOf("${") == -1) {
+            return data;
+        }
+
+        synchronized (this) {
+            Context ctx = getParseContext();
+            String parsed = parsedValues.get(key);
+            if (parsed != null) {
+                return parsed;
+            }
+
+            long calls = ctx.functionCalls;
+            parsed = ctx.parseString(data);
+            if (ctx.functionCalls == calls) {
+                parsedValues.put(key, parsed);
+            }
+            return parsed;
+        }
     }
 
-    public void fullyParseFile() {
-        Context ctx = new Context();
-        ctx.mergeSettings(this);
+    public synchronized void fullyParseFile() {
+        Context ctx = getParseContext();
         for (String key : properties.keySet()) {
             String data = get(key);
             data = ctx.parseString(data);
@@ -851,55 +964,103 @@ public class PropertyFile {
         }
     }
 
+    static final Pattern filenamePattern = Pattern.compile("file\\s*=\\s*([^\\s]+)");
+    static final Pattern formatPattern = Pattern.compile("format\\s*=\\s*([^\\s]+)");
+    static final Pattern sectionPattern = Pattern.compile("(?<=\")\\s+(?=\")");
+
+    // The same characters as \\s in a regular expression.
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    // Split a (trimmed) "key = value" line into its key and value.  The key
+    // runs up to the first space or =, and the = may have spaces either side
+    // of it.  Returns null if the line isn't a key and value.
+    static String[] splitKeyValue(String line) {
+        int len = line.length();
+        int pos = 0;
+
+        while (pos < len) {
+            char c = line.charAt(pos);
+            if (c == '=' || isSpace(c)) {
+                break;
+            }
+            pos++;
+        }
+
+        if (pos == 0) {
+            return null;
+        }
+
+        String key = line.substring(0, pos);
+
+        while (pos < len && isSpace(line.charAt(pos))) {
+            pos++;
+        }
+
+        if (pos == len || line.charAt(pos) != '=') {
+            return null;
+        }
+        pos++;
+
+        while (pos < len && isSpace(line.charAt(pos))) {
+            pos++;
+        }
+
+        return new String[] { key, line.substring(pos) };
+    }
+
     public boolean loadProperties(TreeMap<String, String> p, BufferedReader r) {
         String line;
-        Pattern keyval = Pattern.compile("^([^=\\s]+)\\s*=\\s*(.*)$");
-        Pattern filename = Pattern.compile("file\\s*=\\s*([^\\s]+)");
-        Pattern format = Pattern.compile("format\\s*=\\s*([^\\s]+)");
+        version++;
         try {
             while ((line = r.readLine()) != null) {
                 line = line.trim();
-                if (line.startsWith("#")) {
+                if (line.length() == 0 || line.charAt(0) == '#') {
                     continue;
                 }
-                if (line.startsWith("@")) {
+                if (line.charAt(0) == '@') {
                     if (line.startsWith("@include ")) {
-                        Matcher fnmatch = filename.matcher(line);
-                        Matcher fmtmatch = format.matcher(line);
+                        Matcher fnmatch = filenamePattern.matcher(line);
+                        Matcher fmtmatch = formatPattern.matcher(line);
                         if (fnmatch.find()) {
                             String fn = fnmatch.group(1);
                             String fmt = "propertyfile";
                             if (fmtmatch.find()) {
                                 fmt = fmtmatch.group(1);
                             }
+                            PropertyFile apf = null;
                             if (fmt.equals("propertyfile")) {
-                                PropertyFile apf = new PropertyFile(fn);
-                                for (Object k : apf.keySet()) {
-                                    p.put((String)k, apf.get((String)k));
-                                }
+                                apf = new PropertyFile(fn);
                             } else if (fmt.equals("arduino")) {
-                                PropertyFile apf = parseArduinoFile(fn);
+                                apf = parseArduinoFile(fn);
+                            }
+                            if (apf != null) {
+                                // Anything included, however deep, is part of what this
+                                // file depends on.
+                                includedFiles.add(new File(fn).getAbsoluteFile());
+                                includedFiles.addAll(apf.getIncludedFiles());
                                 for (Object k : apf.keySet()) {
                                     p.put((String)k, apf.get((String)k));
                                 }
                             }
                         }
                     } else if (line.startsWith("@begin ")) {
-                        Matcher fnmatch = filename.matcher(line);
-                        Matcher fmtmatch = format.matcher(line);
+                        Matcher fnmatch = filenamePattern.matcher(line);
+                        Matcher fmtmatch = formatPattern.matcher(line);
                         if (fnmatch.find()) {
                             String fn = fnmatch.group(1);
                             String fmt = "javascript";
                             if (fmtmatch.find()) {
                                 fmt = fmtmatch.group(1);
                             }
-                            StringBuilder sb = new StringBuilder();
+                            StringBuilder sb = new StringBuilder(1024);
                             while ((line = r.readLine()) != null) {
                                 if (line.startsWith("@end")) {
                                     break;
                                 }
                                 sb.append(line);
-                                sb.append("\n");
+                                sb.append('\n');
                             }
                             embedded.put(fn, sb.toString());
                             embeddedTypes.put(fn, fmt);
@@ -908,19 +1069,21 @@ public class PropertyFile {
                         
                     continue;
                 }
-                while (line.endsWith("\\")) {
-                    line = line.substring(0, line.length() - 1);
-                    String cont = r.readLine();
-                    if (cont == null) {
-                        return true;
+                if (line.endsWith("\\")) {
+                    StringBuilder joined = new StringBuilder(line);
+                    while (joined.length() > 0 && joined.charAt(joined.length() - 1) == '\\') {
+                        joined.setLength(joined.length() - 1);
+                        String cont = r.readLine();
+                        if (cont == null) {
+                            return true;
+                        }
+                        joined.append(cont.trim());
                     }
-                    line += cont.trim();
+                    line = joined.toString();
                 }
-                Matcher kvm = keyval.matcher(line);
-                if (kvm.find()) {
-                    String k = kvm.group(1);
-                    String v = kvm.group(2);
-                    p.put(k,v);
+                String[] kv = splitKeyValue(line);
+                if (kv != null) {
+                    p.put(kv[0], kv[1]);
                 }
             }
         } catch (Exception e) {
@@ -939,33 +1102,31 @@ public class PropertyFile {
             BufferedReader br = new BufferedReader(fr);
             String line;
             PropertyFile props = new PropertyFile();
-            Pattern keyval = Pattern.compile("^([^=\\s]+)\\s*=\\s*(.*)$");
             while ((line = br.readLine()) != null) {
                 line = line.trim();
                 if (line.startsWith("#")) {
                     continue;
                 }
-                Matcher kvm = keyval.matcher(line);
-                if (kvm.find()) {
-                    String key = kvm.group(1);
-                    String val = kvm.group(2);
-
-                    val = val.replace("{", "%%START%%");
-                    val = val.replace("%%START%%", "${");
-                    String[] sections = val.split("(?<=\")\\s+(?=\")");
+                String[] kv = splitKeyValue(line);
+                if (kv != null) {
+                    String key = kv[0];
+                    String val = kv[1];
+
+                    val = val.replace("{", "${");
+                    String[] sections = sectionPattern.split(val);
+                    StringBuilder out = new StringBuilder();
                     boolean first = true;
-                    String out = "";
                     for (String section : sections) {
                         if (!first) {
-                            out += "::";
+                            out.append("::");
                         }
                         first = false;
                         if (section.startsWith("\"") && section.endsWith("\"")) {
                             section = section.substring(1, section.length()-2);
                         }
-                        out += section;
+                        out.append(section);
                     }
-                    props.set(key, out);
+                    props.set(key, out.toString());
                 }
             }
             br.close();
@@ -992,6 +1153,11 @@ public class PropertyFile {
         return binary;
     }
 
+    /*! Get the version number of the data.  This changes whenever the data does. */
+    public long getVersion() {
+        return version;
+    }
+
     public void setSource(String k, String s) {
         sources.put(k, s);
     }
@@ -1000,6 +1166,10 @@ public class PropertyFile {
         return sources.get(k);
     }
 
+    public ArrayList<File> getIncludedFiles() {
+        return includedFiles;
+    }
+
     public TreeMap<String, String> getEmbeddedMap() {
         return embedded;
     }
@@ -1008,4 +1178,61 @@ public class PropertyFile {
     }
 
 
+
+    // Time how long it takes to parse all the definition files (board.txt,
+    // core.txt and so on) found in the folders given on the command line.
+    //
+    //     java -cp ... org.uecide.PropertyFile [-n count] folder [folder...]
+
+    static final String[] DEFINITION_FILES = { "board.txt", "core.txt", "compiler.txt", "programmer.txt" };
+
+    static void findDefinitionFiles(File folder, ArrayList<File> found) {
+        File[] list = folder.listFiles();
+        if (list == null) {
+            return;
+        }
+        for (File f : list) {
+            if (f.isDirectory()) {
+                findDefinitionFiles(f, found);
+            } else if (Arrays.asList(DEFINITION_FILES).contains(f.getName())) {
+                found.add(f);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int count = 10;
+        ArrayList<File> files = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i < args.length - 1) {
+                count = Integer.parseInt(args[++i]);
+            } else {
+                findDefinitionFiles(new File(args[i]), files);
+            }
+        }
+
+        if (files.size() == 0) {
+            System.out.println("Usage: PropertyFile [-n count] folder [folder...]");
+            return;
+        }
+
+        long bytes = 0;
+        int keys = 0;
+        for (File f : files) {
+            bytes += f.length();
+            keys += new PropertyFile(f).getProperties().size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (File f : files) {
+                new PropertyFile(f);
+            }
+        }
+        long time = System.nanoTime() - start;
+
+        System.out.println(String.format("%d files, %d keys, %dKB: %.2fms per pass, %.1fus per file (%d passes)",
+            files.size(), keys, bytes / 1024, time / 1000000.0 / count, time / 1000.0 / count / files.size(), count));
+    }
 }
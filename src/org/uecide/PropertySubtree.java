@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+// A read-only window on to the part of a PropertyFile below a given prefix, as
+// returned by PropertyFile.getChildrenView().  Nothing is copied; every lookup
+// has the prefix added and is passed through to the parent file.  Only those
+// things that have to hand back a map of their own (getProperties, toTreeMap)
+// build one.
+
+class PropertySubtree extends PropertyFile {
+
+    PropertyFile parent;
+    String prefix;
+
+    PropertySubtree(PropertyFile p, String pre) {
+        parent = p;
+        prefix = pre;
+    }
+
+    void readOnly() {
+        throw new UnsupportedOperationException("Property subtree views are read-only");
+    }
+
+    public String get(String attribute) {
+        return parent.get(prefix + attribute);
+    }
+
+    public String getDefault(String attribute) {
+        return parent.getDefault(prefix + attribute);
+    }
+
+    public String getPlatformSpecific(String attribute) {
+        return parent.getPlatformSpecific(prefix + attribute);
+    }
+
+    public String getPlatformSpecificKey(String attribute) {
+        return parent.getPlatformSpecificKey(prefix + attribute).substring(prefix.length());
+    }
+
+    public String[] getArray(String attribute) {
+        return parent.getArray(prefix + attribute);
+    }
+
+    public String keyForOS(String key) {
+        return parent.keyForOS(prefix + key).substring(prefix.length());
+    }
+
+    public boolean keyExists(String key) {
+        return parent.keyExists(prefix + key);
+    }
+
+    public String[] childKeys() {
+        return childKeys(parent.range(prefix), prefix);
+    }
+
+    public String[] childKeysOf(String path) {
+        return parent.childKeysOf(prefix + path);
+    }
+
+    public PropertyFile getChildren(String path) {
+        if(path == null || path.equals("")) {
+            return new PropertyFile(this);
+        }
+        return parent.getChildren(prefix + path);
+    }
+
+    public PropertyFile getChildrenView(String path) {
+        if(path == null || path.equals("")) {
+            return this;
+        }
+        return parent.getChildrenView(prefix + path);
+    }
+
+    public int size() {
+        return parent.range(prefix).size();
+    }
+
+    public ArrayList<String> keySet() {
+        ArrayList<String> ks = new ArrayList<String>();
+        for (String k : parent.range(prefix).keySet()) {
+            ks.add(k.substring(prefix.length()));
+        }
+        return ks;
+    }
+
+    public TreeMap<String, String> getProperties() {
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : parent.range(prefix).entrySet()) {
+            map.put(entry.getKey().substring(prefix.length()), entry.getValue());
+        }
+        return map;
+    }
+
+    public String getSource(String k) {
+        return parent.getSource(prefix + k);
+    }
+
+    public long getVersion() {
+        return parent.getVersion();
+    }
+
+    public void debugDump() {
+        for (String k : keySet()) {
+            System.err.println(k + " = " + get(k) + " (" + getSource(k) + ")");
+        }
+    }
+
+    public void set(String attribute, String value) { readOnly(); }
+    public void unset(String attribute) { readOnly(); }
+    public void removeAll(String key) { readOnly(); }
+    public void mergeData(TreeMap<String, String> data) { readOnly(); }
+    public void mergeData(PropertyFile pf) { readOnly(); }
+    public void mergeData(PropertyFile pf, String pre) { readOnly(); }
+    public void setSource(String k, String s) { readOnly(); }
+    public void save(File f) { readOnly(); }
+    public void save() { readOnly(); }
+    public void saveDelay() { readOnly(); }
+    public void loadNewUserFile(File user) { readOnly(); }
+    public void fullyParseFile() { readOnly(); }
+    public void setPlatformAutoOverride(boolean f) { readOnly(); }
+}
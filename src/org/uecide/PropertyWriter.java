@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.*;
+import java.awt.event.*;
+
+import javax.swing.*;
+import javax.swing.table.*;
+
+// Writes property files out in the background for PropertyFile.saveDelay().
+// There is just the one writer thread.  Each file has at most one save waiting
+// for it, and asking for another save before it has happened just moves it
+// back, so a run of changes (dragging a slider, say) ends up as one write.
+// Anything still waiting when the program exits is written out before it goes.
+
+public class PropertyWriter {
+
+    static final long DELAY = 1000;
+
+    static class Pending {
+        PropertyFile file;
+        File path;
+        long requested;
+        long due;
+        int requests;
+        ScheduledFuture<?> future;
+    }
+
+    static ScheduledThreadPoolExecutor writer = null;
+    static LinkedHashMap<File, Pending> pending = new LinkedHashMap<File, Pending>();
+
+    static long writes = 0;
+    static long coalesced = 0;
+
+    static synchronized ScheduledThreadPoolExecutor getWriter() {
+        if (writer == null) {
+            writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Property writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            writer.setRemoveOnCancelPolicy(true);
+
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+        return writer;
+    }
+
+    // Ask for a property file to be saved after a short delay.
+    public static void saveDelay(PropertyFile pf) {
+        File path = pf.userFile;
+        if (path == null) {
+            return;
+        }
+        path = path.getAbsoluteFile();
+
+        ScheduledThreadPoolExecutor w = getWriter();
+
+        synchronized (pending) {
+            Pending p = pending.get(path);
+            if (p == null) {
+                p = new Pending();
+                p.path = path;
+                p.requested = System.currentTimeMillis();
+                pending.put(path, p);
+            } else {
+                p.future.cancel(false);
+                coalesced++;
+            }
+            p.file = pf;
+            p.requests++;
+            p.due = System.currentTimeMillis() + DELAY;
+
+            final File key = path;
+            p.future = w.schedule(new Runnable() {
+                public void run() {
+                    write(key);
+                }
+            }, DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void write(File path) {
+        Pending p;
+        synchronized (pending) {
+            p = pending.remove(path);
+            if (p == null) {
+                return;
+            }
+            p.future.cancel(false);
+            writes++;
+        }
+        p.file.save();
+    }
+
+    // Write out everything that is waiting, right now, on this thread.
+    public static void flush() {
+        ArrayList<File> paths;
+        synchronized (pending) {
+            paths = new ArrayList<File>(pending.keySet());
+        }
+        for (File path : paths) {
+            write(path);
+        }
+    }
+
+    // Forget any waiting save for a file - it has just been saved some other way.
+    static void saved(File path) {
+        if (path == null) {
+            return;
+        }
+        synchronized (pending) {
+            Pending p = pending.remove(path.getAbsoluteFile());
+            if (p != null) {
+                p.future.cancel(false);
+            }
+        }
+    }
+
+    public static int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    // A small window showing the saves that are waiting to happen.
+    public static void open(Window parent) {
+        final JDialog dialog = new JDialog(parent, JDialog.ModalityType.MODELESS);
+        dialog.setTitle(Base.i18n.string("win.saves"));
+        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dialog.setLayout(new BorderLayout());
+
+        final JLabel summary = new JLabel();
+        dialog.add(summary, BorderLayout.NORTH);
+
+        final ArrayList<Pending> rows = new ArrayList<Pending>();
+
+        final AbstractTableModel tableModel = new AbstractTableModel() {
+            public String getColumnName(int col) {
+                switch (col) {
+                    case 0: return Base.i18n.string("saves.file");
+                    case 1: return Base.i18n.string("saves.requests");
+                    case 2: return Base.i18n.string("saves.waiting");
+                    case 3: return Base.i18n.string("saves.due");
+                }
+                return null;
+            }
+
+            public int getRowCount() {
+                return rows.size();
+            }
+
+            public int getColumnCount() {
+                return 4;
+            }
+
+            public Object getValueAt(int row, int col) {
+                Pending p = rows.get(row);
+                long now = System.currentTimeMillis();
+                switch (col) {
+                    case 0: return p.path.getAbsolutePath();
+                    case 1: return p.requests;
+                    case 2: return now - p.requested;
+                    case 3: return Math.max(0, p.due - now);
+                }
+                return null;
+            }
+        };
+
+        JTable table = new JTable(tableModel);
+        JScrollPane scroll = new JScrollPane(table);
+        dialog.add(scroll, BorderLayout.CENTER);
+
+        JPanel buttons = new JPanel();
+        buttons.setLayout(new FlowLayout());
+        dialog.add(buttons, BorderLayout.SOUTH);
+
+        JButton flushButton = new JButton(Base.i18n.string("saves.flush"));
+        flushButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                flush();
+            }
+        });
+        buttons.add(flushButton);
+
+        JButton closeButton = new JButton(Base.i18n.string("misc.close"));
+        closeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                dialog.dispose();
+            }
+        });
+        buttons.add(closeButton);
+
+        final javax.swing.Timer refresh = new javax.swing.Timer(250, new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                rows.clear();
+                synchronized (pending) {
+                    rows.addAll(pending.values());
+                    summary.setText(" " + Base.i18n.string("saves.summary", writes, coalesced));
+                }
+                tableModel.fireTableDataChanged();
+            }
+        });
+        refresh.setInitialDelay(0);
+        refresh.start();
+
+        dialog.addWindowListener(new WindowAdapter() {
+            public void windowClosed(WindowEvent ev) {
+                refresh.stop();
+            }
+        });
+
+        dialog.setSize(new Dimension(600, 250));
+        dialog.setLocationRelativeTo(parent);
+        dialog.setVisible(true);
+    }
+}
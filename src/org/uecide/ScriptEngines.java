@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import javax.script.*;
+
+// JavaScript engines for running the scripts in recipes.  Making a new engine
+// and evaluating the script from scratch is slow, so each thread keeps its own
+// engine, and the scripts it has been given are compiled the first time they
+// are seen and kept, looked up by their source.  Every call still gets a fresh
+// set of variables, so one call can't see anything left behind by another.
+
+public class ScriptEngines {
+
+    static final int MAX_SCRIPTS = 64;
+
+    static ScriptEngineManager manager = null;
+
+    static class Engine {
+        ScriptEngine engine;
+        LinkedHashMap<String, CompiledScript> scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> e) {
+                return size() > MAX_SCRIPTS;
+            }
+        };
+    }
+
+    static ThreadLocal<Engine> engines = new ThreadLocal<Engine>() {
+        protected Engine initialValue() {
+            Engine e = new Engine();
+            e.engine = getManager().getEngineByName("JavaScript");
+            return e;
+        }
+    };
+
+    static synchronized ScriptEngineManager getManager() {
+        if (manager == null) {
+            manager = new ScriptEngineManager();
+        }
+        return manager;
+    }
+
+    // Get this thread's engine with the script loaded into a fresh set of
+    // variables.  Returns null if there is no JavaScript engine available.
+    public static ScriptEngine prepare(String script, Map<String, Object> vars) throws ScriptException {
+        Engine e = engines.get();
+        if (e.engine == null) {
+            return null;
+        }
+
+        Bindings b = e.engine.createBindings();
+        if (vars != null) {
+            b.putAll(vars);
+        }
+        e.engine.setBindings(b, ScriptContext.ENGINE_SCOPE);
+
+        if (!(e.engine instanceof Compilable)) {
+            e.engine.eval(script);
+            return e.engine;
+        }
+
+        CompiledScript cs = e.scripts.get(script);
+        if (cs == null) {
+            cs = ((Compilable)e.engine).compile(script);
+            e.scripts.put(script, cs);
+        }
+        cs.eval();
+        return e.engine;
+    }
+
+    // Run a function from a script.
+    public static Object invoke(String script, Map<String, Object> vars, String function, Object[] args) throws ScriptException, NoSuchMethodException {
+        ScriptEngine engine = prepare(script, vars);
+        if (engine == null) {
+            return null;
+        }
+        Invocable inv = (Invocable)engine;
+        if (args == null) {
+            return inv.invokeFunction(function);
+        }
+        return inv.invokeFunction(function, args);
+    }
+
+    // Time running a typical recipe script the old way (a new engine every
+    // time) against the pooled, compiled way.
+
+    static final String BENCHMARK_SCRIPT =
+        "function getPort(board, port) {\n" +
+        "    var name = ctx.get(\"name\");\n" +
+        "    var out = [];\n" +
+        "    for (var i = 0; i < 10; i++) {\n" +
+        "        out.push(name + \":\" + board + \":\" + port + \":\" + i);\n" +
+        "    }\n" +
+        "    return out.join(\",\");\n" +
+        "}\n";
+
+    public static void main(String[] args) throws Exception {
+        int count = 10000;
+        if (args.length > 0) {
+            count = Integer.parseInt(args[0]);
+        }
+
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        HashMap<String, String> ctx = new HashMap<String, String>();
+        ctx.put("name", "benchmark");
+        vars.put("ctx", ctx);
+        Object[] fargs = new Object[] { "uno", "/dev/ttyUSB0" };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ScriptEngine engine = new ScriptEngineManager().getEngineByName("JavaScript");
+            if (engine == null) {
+                System.out.println("No JavaScript engine available");
+                return;
+            }
+            engine.put("ctx", ctx);
+            engine.eval(BENCHMARK_SCRIPT);
+            ((Invocable)engine).invokeFunction("getPort", fargs);
+        }
+        long fresh = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            invoke(BENCHMARK_SCRIPT, vars, "getPort", fargs);
+        }
+        long pooled = System.nanoTime() - start;
+
+        System.out.println(String.format("%d calls: new engine each time %dms (%.1fus/call), pooled %dms (%.1fus/call)",
+            count, fresh / 1000000L, fresh / 1000.0 / count, pooled / 1000000L, pooled / 1000.0 / count));
+    }
+}
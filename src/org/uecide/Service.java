@@ -30,41 +30,111 @@
 
 package org.uecide;
 
+import java.util.*;
+import java.util.concurrent.*;
+
+// Services all share the scheduler in ServiceManager rather than having a
+// thread each.  Each time round loop() is called, and once it has finished
+// the next run is booked for "interval" milliseconds later, plus a little
+// random jitter so the services don't all wake up at once.  A service that
+// takes longer than its interval just runs late - runs never stack up.
+//
+// Heh, let's model it after the Arduino structure.
+// I mean, why not, eh?
+
 public abstract class Service implements Runnable {
     int interval;
-    Thread myThread;
+    int jitter = -1;
     String name;
 
-    boolean running = false;
-    boolean active = false;
+    volatile boolean running = false;
+    volatile boolean active = false;
+
+    // Set while setup(), loop() or cleanup() is being run, so we know not to
+    // book another run over the top of it.
+    boolean busy = false;
+    boolean runAgain = false;
+    Thread worker = null;
+    ScheduledFuture<?> future = null;
+
+    // Timing information
+    long runCount = 0;
+    long overrunCount = 0;
+    long lastRunTime = 0;
+    long maxRunTime = 0;
+    long totalRunTime = 0;
+
+    static Random random = new Random();
 
-    public Thread start() {
+    public synchronized void start() {
+        if (running || active) {
+            return;
+        }
         running = true;
-        myThread = new Thread(this);
-        myThread.start();
-        return myThread;
+        active = true;
+        busy = true;
+        ServiceManager.getExecutor().execute(new Runnable() {
+            public void run() {
+                startup();
+            }
+        });
     }
 
     public void stop() {
         stop(false);
     }
 
+    // Stop the service.  Nothing more will be booked, and anything that is
+    // waiting to run is thrown away.  If a run is already going on then the
+    // service is cleaned up once it finishes - if "wait" is set then we wait
+    // for that to happen.
     public void stop(boolean wait) {
-        running = false;
-        if (wait) {
-            while (active) {
-                try {
-                    Thread.sleep(100);
-                } catch (Exception e) {
+        synchronized (this) {
+            running = false;
+            runAgain = false;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+            if (active && !busy) {
+                busy = true;
+                ServiceManager.getExecutor().execute(new Runnable() {
+                    public void run() {
+                        shutdown();
+                    }
+                });
+            }
+
+            if (wait && worker != Thread.currentThread()) {
+                while (active) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 }
-                continue;
             }
         }
     }
 
-    public Thread restart() {
+    public void restart() {
         stop(true);
-        return start();
+        start();
+    }
+
+    // Run the service's loop as soon as possible instead of waiting for the
+    // interval to pass.  If it is running already it will go round again as
+    // soon as it has finished.
+    public synchronized void runNow() {
+        if (!running) {
+            return;
+        }
+        if (busy) {
+            runAgain = true;
+            return;
+        }
+        schedule(0);
     }
 
     public int getInterval() {
@@ -75,6 +145,19 @@ public abstract class Service implements Runnable {
         interval = i;
     }
 
+    // The most that is randomly added to the interval each time.  Unless set
+    // it is a tenth of the interval.
+    public int getJitter() {
+        if (jitter < 0) {
+            return interval / 10;
+        }
+        return jitter;
+    }
+
+    public void setJitter(int j) {
+        jitter = j;
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -91,24 +174,138 @@ public abstract class Service implements Runnable {
         return name;
     }
 
-    // Heh, let's model it after the Arduino structure.
-    // I mean, why not, eh?
+    public synchronized long getRunCount() {
+        return runCount;
+    }
+
+    // How many times loop() has taken longer than the interval.
+    public synchronized long getOverrunCount() {
+        return overrunCount;
+    }
+
+    // Run times are all in milliseconds.
+    public synchronized long getLastRunTime() {
+        return lastRunTime;
+    }
+
+    public synchronized long getMaxRunTime() {
+        return maxRunTime;
+    }
+
+    public synchronized long getAverageRunTime() {
+        if (runCount == 0) {
+            return 0;
+        }
+        return totalRunTime / runCount;
+    }
+
+    public synchronized void resetStatistics() {
+        runCount = 0;
+        overrunCount = 0;
+        lastRunTime = 0;
+        maxRunTime = 0;
+        totalRunTime = 0;
+    }
+
+    // Book the next run.  Must be called with the lock held.
+    void schedule(long delay) {
+        if (future != null) {
+            future.cancel(false);
+        }
+        future = ServiceManager.getExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    long nextDelay() {
+        int j = getJitter();
+        if (j <= 0) {
+            return interval;
+        }
+        return interval + random.nextInt(j + 1);
+    }
+
+    void startup() {
+        synchronized (this) {
+            worker = Thread.currentThread();
+        }
 
-    public void run() {
-        active = true;
         System.err.println("Service '" + getName() + "' started");
-        setup();
-        while (running) {
-            try {
-                Thread.sleep(interval);
-            } catch (InterruptedException e) {
-                continue;
+        try {
+            setup();
+        } catch (Exception e) {
+            Base.error(e);
+            running = false;
+        }
+
+        finished();
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            worker = Thread.currentThread();
+        }
+
+        try {
+            cleanup();
+        } catch (Exception e) {
+            Base.error(e);
+        }
+        System.err.println("Service '" + getName() + "' stopped");
+
+        synchronized (this) {
+            worker = null;
+            busy = false;
+            active = false;
+            notifyAll();
+        }
+    }
+
+    // Called from the scheduler each time the service is due.
+    public void run() {
+        synchronized (this) {
+            if (!running || busy) {
+                return;
             }
+            busy = true;
+            future = null;
+            worker = Thread.currentThread();
+        }
+
+        long start = System.nanoTime();
+        try {
             loop();
+        } catch (Exception e) {
+            Base.error(e);
         }
-        cleanup();
-        System.err.println("Service '" + getName() + "' stopped");
-        active = false;
+        long time = (System.nanoTime() - start) / 1000000L;
+
+        synchronized (this) {
+            runCount++;
+            lastRunTime = time;
+            totalRunTime += time;
+            if (time > maxRunTime) {
+                maxRunTime = time;
+            }
+            if (time > interval) {
+                overrunCount++;
+            }
+        }
+
+        finished();
+    }
+
+    // A piece of work has finished: either book the next run, or if we have
+    // been told to stop in the mean time, clean up.
+    void finished() {
+        synchronized (this) {
+            worker = null;
+            if (running) {
+                busy = false;
+                schedule(runAgain ? 0 : nextDelay());
+                runAgain = false;
+                return;
+            }
+        }
+        shutdown();
     }
 
     public String getKey() {
@@ -136,4 +333,3 @@ public abstract class Service implements Runnable {
     public abstract void loop();
     public abstract void cleanup();
 }
-
@@ -31,6 +31,7 @@
 package org.uecide;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.awt.*;
 import java.awt.event.*;
 
@@ -41,6 +42,26 @@ import javax.swing.event.*;
 public class ServiceManager {
     static ArrayList<Service> services = new ArrayList<Service>();
 
+    static ScheduledThreadPoolExecutor executor = null;
+
+    // The one scheduler that all the services run on.
+    public static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+            executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+                int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    count++;
+                    Thread t = new Thread(r, "Service " + count);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+
     public static void addService(Service s) {
         services.add(s);
         if (s.isAutoStart()) {
@@ -50,6 +71,7 @@ public class ServiceManager {
 
     public static void open(Window parent) {
         final JDialog dialog = new JDialog(parent, JDialog.ModalityType.APPLICATION_MODAL);
+        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
         dialog.setResizable(false);
 
         dialog.setLayout(new BorderLayout());
@@ -64,10 +86,10 @@ public class ServiceManager {
         JScrollPane scroll = new JScrollPane();
         dialog.add(scroll, BorderLayout.CENTER);
 
-        dialog.setMinimumSize(new Dimension(400, 500));
-        dialog.setMaximumSize(new Dimension(400, 500));
-        dialog.setPreferredSize(new Dimension(400, 500));
-        dialog.setSize(new Dimension(400, 500));
+        dialog.setMinimumSize(new Dimension(700, 500));
+        dialog.setMaximumSize(new Dimension(700, 500));
+        dialog.setPreferredSize(new Dimension(700, 500));
+        dialog.setSize(new Dimension(700, 500));
         dialog.setLocationRelativeTo(parent);
 
         JButton closeButton = new JButton("Close");
@@ -80,14 +102,17 @@ public class ServiceManager {
         final JButton stopButton = new JButton(Base.loadIconFromResource("toolbar/media-playback-stop.png"));
         final JButton startButton = new JButton(Base.loadIconFromResource("toolbar/media-playback-start.png"));
         final JButton restartButton = new JButton(Base.loadIconFromResource("toolbar/media-seek-forward.png"));
+        final JButton runNowButton = new JButton(Base.loadIconFromResource("toolbar/media-skip-forward.png"));
 
         stopButton.setEnabled(false);
         startButton.setEnabled(false);
         restartButton.setEnabled(false);
+        runNowButton.setToolTipText("Run now");
 
         toolbar.add(stopButton);
         toolbar.add(startButton);
         toolbar.add(restartButton);
+        toolbar.add(runNowButton);
 
         buttons.add(closeButton);
 
@@ -98,6 +123,12 @@ public class ServiceManager {
                     case 0: return "Service name";
                     case 1: return "State";
                     case 2: return "Autostart";
+                    case 3: return "Interval";
+                    case 4: return "Runs";
+                    case 5: return "Last ms";
+                    case 6: return "Avg ms";
+                    case 7: return "Max ms";
+                    case 8: return "Overruns";
                 }
                 return null;
             }
@@ -107,7 +138,7 @@ public class ServiceManager {
             }
 
             public int getColumnCount() {
-                return 3;
+                return 9;
             }
 
             public Object getValueAt(int row, int col) {
@@ -120,6 +151,12 @@ public class ServiceManager {
                     case 0: return s.getName();
                     case 1: return s.isRunning() ? "Running" : "Stopped";
                     case 2: return s.isAutoStart() ? "Yes" : "No";
+                    case 3: return s.getInterval();
+                    case 4: return s.getRunCount();
+                    case 5: return s.getLastRunTime();
+                    case 6: return s.getAverageRunTime();
+                    case 7: return s.getMaxRunTime();
+                    case 8: return s.getOverrunCount();
                 }
                 return null;
             }
@@ -215,6 +252,20 @@ public class ServiceManager {
             }
         });
 
+        runNowButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                int entry = serviceTable.getSelectedRow();
+                if (entry == -1) {
+                    return;
+                }
+                Service s = services.get(entry);
+                if (s == null) {
+                    return;
+                }
+                s.runNow();
+            }
+        });
+
         restartButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent ev) {
                 int entry = serviceTable.getSelectedRow();
@@ -313,9 +364,30 @@ public class ServiceManager {
 
         scroll.setViewportView(serviceTable);
 
+        // Keep the timings up to date while the dialog is open.
+        final javax.swing.Timer refresh = new javax.swing.Timer(1000, new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                int entry = serviceTable.getSelectedRow();
+                tableModel.fireTableDataChanged();
+                if (entry != -1) {
+                    listSelection.setSelectionInterval(entry, entry);
+                }
+            }
+        });
+        refresh.start();
+
+        dialog.addWindowListener(new WindowAdapter() {
+            public void windowClosed(WindowEvent ev) {
+                refresh.stop();
+            }
+        });
+
         dialog.pack();
 
         dialog.setVisible(true);
+
+        // The dialog is modal, so however it was closed it's gone by now.
+        refresh.stop();
     }
 }
 
@@ -46,6 +46,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.jar.*;
 import java.util.zip.*;
 import java.text.*;
@@ -105,6 +107,27 @@ public class Sketch {
 
     HashMap<File, HashMap<Integer, String>> functionList = new HashMap<File, HashMap<Integer, String>>();
 
+    // What was found in each source file the last time it was looked at,
+    // along with the hash of the content it was found in.  A file only gets
+    // scanned again once its content changes.
+    static class FileSymbols {
+        int hash;
+        int length;
+        int version;
+        HashMap<Integer, String> functions;
+        ArrayList<TodoEntry> todo;
+    }
+
+    HashMap<File, FileSymbols> symbolIndex = new HashMap<File, FileSymbols>();
+    static int symbolVersion = 0;
+
+    static final Pattern FUNCTION_PATTERN = Pattern.compile("[a-zA-Z0-9_\\*]+\\s+[a-zA-Z0-9_\\*]+\\s*\\(");
+    static final Pattern ESCAPE_PATTERN = Pattern.compile("\\\\.");
+    static final Pattern CHAR_PATTERN = Pattern.compile("'[^'\\n\\r]*'");
+    static final Pattern STRING_PATTERN = Pattern.compile("\"[^\"\\n\\r]*\"");
+    static final Pattern ENTRY_PATTERN = Pattern.compile("\\.ent\\s+([^\\s]+)");
+    static final Pattern TODO_PATTERN = Pattern.compile("(?i)\\/\\/\\s*(TODO|NOTE|FIXME):\\s*(.*)$");
+
     // Do we want to purge the cache files before building?  This is set by the
     // options system.
     public boolean doPrePurge = false;
@@ -898,7 +921,52 @@ public class Sketch {
         return l.split("\n").length;
     }
 
+    // Remove everything between matching pairs of open and close characters
+    // in one pass, keeping the line breaks so line numbers don't move.  Any
+    // opening character without a matching close is left where it is, just as
+    // repeatedly removing the innermost blocks would do.
+    public String stripBlock(String in, char open, char close) {
+        int len = in.length();
+        int[] opens = new int[16];
+        int depth = 0;
+        int[] removed = new int[len + 1];
+        boolean any = false;
+
+        for (int i = 0; i < len; i++) {
+            char c = in.charAt(i);
+            if (c == open) {
+                if (depth == opens.length) {
+                    opens = Arrays.copyOf(opens, depth * 2);
+                }
+                opens[depth++] = i;
+            } else if (c == close && depth > 0) {
+                removed[opens[--depth]]++;
+                removed[i + 1]--;
+                any = true;
+            }
+        }
+
+        if (!any) {
+            return in;
+        }
+
+        StringBuilder out = new StringBuilder(len);
+        int inside = 0;
+        for (int i = 0; i < len; i++) {
+            char c = in.charAt(i);
+            inside += removed[i];
+            if (inside == 0 || c == '\n') {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
     public String stripBlock(String in, String start, String end) {
+        if (start.length() == 1 && end.length() == 1 && !start.equals(end)) {
+            return stripBlock(in, start.charAt(0), end.charAt(0));
+        }
+
         String regexp;
         String mid;
 
@@ -1026,10 +1094,8 @@ public class Sketch {
         ArrayList<String>ents = new ArrayList<String>();
 
         // First find any entries.
-        Pattern epat = Pattern.compile("\\.ent\\s+([^\\s]+)");
-
         for(String line : lines) {
-            Matcher m = epat.matcher(line);
+            Matcher m = ENTRY_PATTERN.matcher(line);
 
             if(m.find()) {
                 ents.add(m.group(1));
@@ -1057,42 +1123,83 @@ public class Sketch {
         return labels;
     }
 
-    public void findAllFunctions() {
+    // Update the function lists for the sketch files.  Only files whose
+    // content has changed since the last time are scanned again.  Returns
+    // true if anything changed.
+    public boolean findAllFunctions() {
         if(editor == null) {
-            return;
+            return false;
         }
 
-        functionList = new HashMap<File, HashMap<Integer, String>>();
-        String data;
-        HashMap<Integer, String>funcs = null;
+        HashMap<File, FileSymbols> index = new HashMap<File, FileSymbols>();
+        HashMap<File, HashMap<Integer, String>> funcs = new HashMap<File, HashMap<Integer, String>>();
+        boolean changed = false;
 
         for(File f : sketchFiles) {
             switch(FileType.getType(f)) {
             case FileType.SKETCH:
             case FileType.CSOURCE:
             case FileType.CPPSOURCE:
-                data = getFileContent(f);
-                data = stripComments(data);
-                funcs = findFunctions(data);
-                functionList.put(f, funcs);
-                break;
-
             case FileType.ASMSOURCE:
-                data = getFileContent(f);
-                funcs = findLabels(data);
-                functionList.put(f, funcs);
+                FileSymbols fs = getSymbols(f, getFileContent(f));
+                if (symbolIndex.get(f) != fs) {
+                    changed = true;
+                }
+                index.put(f, fs);
+                funcs.put(f, fs.functions);
                 break;
             }
         }
+
+        if (index.size() != symbolIndex.size()) {
+            changed = true;
+        }
+
+        symbolIndex = index;
+        functionList = funcs;
+        return changed;
+    }
+
+    // Get the symbols for a file, scanning it only if the content doesn't
+    // match what was scanned last time.
+    FileSymbols getSymbols(File f, String data) {
+        FileSymbols fs = symbolIndex.get(f);
+        if (fs != null && fs.length == data.length() && fs.hash == data.hashCode()) {
+            return fs;
+        }
+
+        fs = new FileSymbols();
+        fs.hash = data.hashCode();
+        fs.length = data.length();
+        if (FileType.getType(f) == FileType.ASMSOURCE) {
+            fs.functions = findLabels(data);
+        } else {
+            fs.functions = findFunctions(stripComments(data));
+        }
+        fs.todo = findTodo(f, data);
+        synchronized (FileSymbols.class) {
+            fs.version = ++symbolVersion;
+        }
+        return fs;
+    }
+
+    // A number that changes whenever the symbols found in a file change, or
+    // 0 if the file hasn't been looked at.
+    public int getSymbolsVersion(File f) {
+        FileSymbols fs = symbolIndex.get(f);
+        if (fs == null) {
+            return 0;
+        }
+        return fs.version;
     }
 
     public HashMap<Integer, String> findFunctions(String in) {
         HashMap<Integer, String> funcs = new HashMap<Integer, String>();
 
-        String out = in.replaceAll("\\\\.", "");
+        String out = ESCAPE_PATTERN.matcher(in).replaceAll("");
 
-        out = out.replaceAll("'[^'\\n\\r]*'", "");
-        out = out.replaceAll("\"[^\"\\n\\r]*\"", "");
+        out = CHAR_PATTERN.matcher(out).replaceAll("");
+        out = STRING_PATTERN.matcher(out).replaceAll("");
         out = stripBlock(out, "{", "}");
         String[] s = out.split("\n");
         StringBuilder decimated = new StringBuilder();
@@ -1131,8 +1238,7 @@ public class Sketch {
                 continue;
             }
 
-            Pattern p = Pattern.compile("[a-zA-Z0-9_\\*]+\\s+[a-zA-Z0-9_\\*]+\\s*\\(");
-            Matcher m = p.matcher(line);
+            Matcher m = FUNCTION_PATTERN.matcher(line);
 
             if(m.find()) {
                 decimated.append(line);
@@ -1168,26 +1274,34 @@ public class Sketch {
         for(File f : cleanedFiles.keySet()) {
             try {
                 String data = cleanedFiles.get(f);
-                String fname = f.getName();
-                if(FileType.getType(f) == FileType.SKETCH) {
-                    String ext = ctx.parseString(props.get("build.extension"));
-                    if (ext == null) {
-                        ext = "cpp";
-                    }
-                    fname = "deps-temp." + ext;
-                } else {
-                    String[] bits = fname.split("\\.");
-                    fname = "deps-temp." + bits[bits.length-1];
+
+                boolean haveHunted = false;
+                if (Preferences.getBoolean("compiler.scan_includes")) {
+                    haveHunted = scanForLibraries(f, data, importedLibraries, unknownLibraries);
                 }
 
-                File tempFile = new File(getBuildFolder(), fname);
-                PrintWriter pw = new PrintWriter(tempFile);
-                pw.print(data);
-                pw.close();
-                
-                boolean haveHunted = huntForLibraries(tempFile, importedLibraries, unknownLibraries);
+                if (!haveHunted) {
+                    String fname = f.getName();
+                    if(FileType.getType(f) == FileType.SKETCH) {
+                        String ext = ctx.parseString(props.get("build.extension"));
+                        if (ext == null) {
+                            ext = "cpp";
+                        }
+                        fname = "deps-temp." + ext;
+                    } else {
+                        String[] bits = fname.split("\\.");
+                        fname = "deps-temp." + bits[bits.length-1];
+                    }
+
+                    File tempFile = new File(getBuildFolder(), fname);
+                    PrintWriter pw = new PrintWriter(tempFile);
+                    pw.print(data);
+                    pw.close();
 
-                tempFile.delete();
+                    haveHunted = huntForLibraries(tempFile, importedLibraries, unknownLibraries);
+
+                    tempFile.delete();
+                }
 
                 String lines[] = data.split("\n");
 
@@ -2197,6 +2311,7 @@ public class Sketch {
 
         
         long startTime = System.currentTimeMillis();
+        terminateExecution = false;
 
         PropertyFile props = ctx.getMerged();
 
@@ -2368,37 +2483,7 @@ public class Sketch {
             }
         }
 
-        if (!Base.isQuiet()) bullet("Compiling sketch...");
-        setCompilingProgress(10);
-        ArrayList<File>sketchObjects = compileSketch();
-
-        if(sketchObjects == null) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
-
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.core"));
-        setCompilingProgress(20);
-
-        if(!compileCore()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
-
-        setCompilingProgress(30);
-
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.libraries"));
-
-        if(!compileLibraries()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
-
-        setCompilingProgress(40);
-
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.linking"));
-
-        if(!compileLink(sketchObjects)) {
+        if(!buildObjects()) {
             error(Base.i18n.string("err.compiling.failed"));
             return false;
         }
@@ -2407,7 +2492,7 @@ public class Sketch {
 
         setCompilingProgress(60);
 
-        PropertyFile autogen = props.getChildren("compile.autogen");
+        PropertyFile autogen = props.getChildrenView("compile.autogen");
         String[] types = autogen.childKeys();
 
         if (types.length > 0) {
@@ -2534,6 +2619,153 @@ public class Sketch {
         return true;
     }
 
+    // Build everything that goes into the final link.  The core libraries, each
+    // imported library and the sketch itself are all independent of each other, so
+    // they are built at the same time, each in its own copy of the context.  The link
+    // waits for them all.  Progress runs from 10% to 50% as the work gets done.
+
+    boolean buildObjects() {
+        final BuildGraph graph = new BuildGraph(getCompileJobs());
+        final ArrayList<File> sketchObjects = new ArrayList<File>();
+        ArrayList<BuildGraph.Node> linkInputs = new ArrayList<BuildGraph.Node>();
+
+        final Context sketchContext = new Context(ctx);
+        int sketchWeight = findFilesInFolder(buildFolder, "S", false).size() +
+                           findFilesInFolder(buildFolder, "c", false).size() +
+                           findFilesInFolder(buildFolder, "cpp", false).size();
+
+        linkInputs.add(graph.addNode(new BuildGraph.Node("sketch", sketchWeight) {
+            public boolean build() {
+                if (!Base.isQuiet()) bullet("Compiling sketch...");
+                ArrayList<File> objects = runBuildStep(sketchContext, new BuildStep<ArrayList<File>>() {
+                    public ArrayList<File> run(Context c) {
+                        compileExecutor = graph.getExecutor();
+                        try {
+                            return compileSketch(c);
+                        } finally {
+                            compileExecutor = null;
+                        }
+                    }
+                });
+                if (objects == null) {
+                    return false;
+                }
+                sketchObjects.addAll(objects);
+                return true;
+            }
+        }));
+
+        final Context stubContext = new Context(ctx);
+        linkInputs.add(graph.addNode(new BuildGraph.Node("core stub", 1) {
+            public boolean build() {
+                runBuildStep(stubContext, new BuildStep<Boolean>() {
+                    public Boolean run(Context c) {
+                        compileCoreStub(c);
+                        return true;
+                    }
+                });
+                return true;
+            }
+        }));
+
+        TreeMap<String, ArrayList<File>> coreLibs = getCoreLibs();
+        PropertyFile props = ctx.getMerged();
+        String prefix = ctx.parseString(props.get("compiler.library.prefix","lib"));
+        String suffix = ctx.parseString(props.get("compiler.library", "a"));
+
+        for (final String lib : coreLibs.keySet()) {
+            final ArrayList<File> core = coreLibs.get(lib);
+            final Context coreContext = new Context(ctx);
+            File archive = getCacheFile(prefix + "Core_" + lib + "." + suffix);
+            int weight = countOutOfDate(getCoreSourceFiles(core), archive);
+
+            linkInputs.add(graph.addNode(new BuildGraph.Node("core " + lib, weight) {
+                public boolean build() {
+                    if (!Base.isQuiet()) bullet2(lib);
+                    return runBuildStep(coreContext, new BuildStep<Boolean>() {
+                        public Boolean run(Context c) {
+                            return compileCore(c, core, "Core_" + lib);
+                        }
+                    });
+                }
+            }));
+        }
+
+        for (final Library lib : importedLibraries.values()) {
+            final Context libContext = new Context(ctx);
+            File archive = getCacheFile(getArchiveName(lib));
+            int weight = countOutOfDate(lib.getSourceFiles(this), archive);
+
+            linkInputs.add(graph.addNode(new BuildGraph.Node("library " + lib.getName(), weight) {
+                public boolean build() {
+                    return runBuildStep(libContext, new BuildStep<Boolean>() {
+                        public Boolean run(Context c) {
+                            return compileLibrary(c, lib);
+                        }
+                    });
+                }
+            }));
+        }
+
+        BuildGraph.Node link = graph.addNode(new BuildGraph.Node("link", 1) {
+            public boolean build() {
+                if (terminateExecution) {
+                    return false;
+                }
+                if (!Base.isQuiet()) bullet(Base.i18n.string("msg.linking"));
+                return compileLink(sketchObjects);
+            }
+        });
+
+        for (BuildGraph.Node n : linkInputs) {
+            link.dependsOn(n);
+        }
+
+        graph.setProgressListener(new BuildGraph.ProgressListener() {
+            public void buildProgress(int done, int total) {
+                setCompilingProgress(10 + (40 * done / total));
+            }
+        });
+
+        boolean ok = graph.build();
+        DependencyDatabase.saveAll();
+        finishObjectCache();
+        return ok;
+    }
+
+    interface BuildStep<T> {
+        public T run(Context c);
+    }
+
+    // Run one step of the build in the given context.  While it runs the context is
+    // registered as a compile job so it gets killed if the build is aborted.
+
+    <T> T runBuildStep(Context c, BuildStep<T> step) {
+        synchronized (compileJobs) {
+            compileJobs.add(c);
+        }
+        try {
+            return step.run(c);
+        } finally {
+            synchronized (compileJobs) {
+                compileJobs.remove(c);
+            }
+        }
+    }
+
+    // Count how many of a set of files are newer than the given archive.
+
+    int countOutOfDate(Collection<File> files, File archive) {
+        long archiveDate = archive.exists() ? archive.lastModified() : 0;
+        int count = 0;
+        for (File f : files) {
+            if (f.lastModified() > archiveDate) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public boolean compileLibraries() {
         for(String lib : importedLibraries.keySet()) {
             if(!compileLibrary(importedLibraries.get(lib))) {
@@ -2549,37 +2781,30 @@ public class Sketch {
     }
 
     private File compileFile(File src, File fileBuildFolder) {
+        return compileFile(ctx, src, fileBuildFolder);
+    }
+
+    private File compileFile(Context ctx, File src, File fileBuildFolder) {
+        return compileFile(ctx, src, fileBuildFolder, null);
+    }
+
+    // Compile a source file.  The object goes in the build folder named after the
+    // source file, unless a specific object file is asked for.  The file is always
+    // compiled - it's up to the caller to ask needsCompile first.
+
+    private File compileFile(Context ctx, File src, File fileBuildFolder, File dest) {
     
         String fileName = src.getName();
         String recipe = null;
 
         if(terminateExecution) {
-            terminateExecution = false;
             error("Compilation terminated");
             return null;
         }
 
         PropertyFile props = ctx.getMerged();
 
-        if(fileName.endsWith(".cpp")) {
-            recipe = "compile.cpp";
-        }
-
-        if(fileName.endsWith(".cxx")) {
-            recipe = "compile.cpp";
-        }
-
-        if(fileName.endsWith(".cc")) {
-            recipe = "compile.cpp";
-        }
-
-        if(fileName.endsWith(".c")) {
-            recipe = "compile.c";
-        }
-
-        if(fileName.endsWith(".S")) {
-            recipe = "compile.S";
-        }
+        recipe = getCompileRecipe(fileName);
 
         if(recipe == null) {
             error(Base.i18n.string("err.badfile", fileName));
@@ -2591,39 +2816,20 @@ public class Sketch {
         }
 
         String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
-        String objExt = ctx.parseString(props.get("compiler.object","o"));
-        File dest = new File(fileBuildFolder, fileName + "." +objExt);
-
-        if(dest.exists()) {
-            if(dest.lastModified() > src.lastModified()) {
-                return dest;
-            }
+        if (dest == null) {
+            String objExt = ctx.parseString(props.get("compiler.object","o"));
+            dest = new File(fileBuildFolder, fileName + "." +objExt);
         }
 
         ctx.set("build.path", fileBuildFolder.getAbsolutePath());
         ctx.set("source.name", src.getAbsolutePath());
         ctx.set("object.name", dest.getAbsolutePath());
+        ctx.set("dependency.name", getDependencyName(dest));
 
-        ctx.addDataStreamParser(new DataStreamParser() {
-            public String parseStreamMessage(Context ctx, String m) {
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-            public String parseStreamError(Context ctx, String m) {
-                if (parseLineForErrorMessage(ctx, m)) {
-                    return "";
-                }
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-        });
+        ctx.addDataStreamParser(new CompileStreamParser());
 
         String output = "";
-        if(!(Boolean)ctx.executeKey(recipe)) {
+        if(!runCompileRecipe(ctx, recipe, src, dest)) {
             ctx.removeDataStreamParser();
             return null;
         }
@@ -2667,6 +2873,23 @@ public class Sketch {
 
     public boolean compileCore() {
         TreeMap<String, ArrayList<File>> coreLibs = getCoreLibs();
+
+        compileCoreStub(ctx);
+
+        for(String lib : coreLibs.keySet()) {
+            if (!Base.isQuiet()) bullet2(lib.toString());
+
+            if(!compileCore(coreLibs.get(lib), "Core_" + lib)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Compile the main stub file(s) of the core and put the objects in the cache.
+
+    void compileCoreStub(Context ctx) {
         PropertyFile props = ctx.getMerged();
 
         if (props.get("compile.stub") != null) {
@@ -2675,28 +2898,52 @@ public class Sketch {
             for (String stubFile : bits) {
                 File mainStubFile = new File(stubFile);
                 if (mainStubFile.exists()) {
-                    File mainStubObject = compileFile(mainStubFile);
-                    File cachedStubObject = getCacheFile(mainStubObject.getName());
+                    String objExt = ctx.parseString(props.get("compiler.object","o"));
+                    File cachedStubObject = getCacheFile(mainStubFile.getName() + "." + objExt);
+                    String recipe = getCompileRecipe(mainStubFile.getName());
+                    String depKey = "stub:" + mainStubFile.getAbsolutePath();
+                    long builtDate = cachedStubObject.exists() ? cachedStubObject.lastModified() : 0;
+                    if (!needsCompile(ctx, mainStubFile, recipe, cachedStubObject.getParentFile(), depKey, builtDate)) {
+                        continue;
+                    }
+                    long startTime = System.currentTimeMillis();
+                    File mainStubObject = compileFile(ctx, mainStubFile, buildFolder);
+                    if (mainStubObject == null) {
+                        continue;
+                    }
                     if (mainStubObject.exists()) {
+                        recordDependencies(ctx, mainStubFile, mainStubObject, recipe, cachedStubObject.getParentFile(), depKey, startTime);
                         Base.copyFile(mainStubObject, cachedStubObject);
+                        getDependencyFile(mainStubObject).delete();
                         mainStubObject.delete();
                     }
                 }
             }
         }
+    }
 
-        for(String lib : coreLibs.keySet()) {
-            if (!Base.isQuiet()) bullet2(lib.toString());
+    // Get the list of source files that make up a core library.
 
-            if(!compileCore(coreLibs.get(lib), "Core_" + lib)) {
-                return false;
+    ArrayList<File> getCoreSourceFiles(ArrayList<File> core) {
+        ArrayList<File> fileList = new ArrayList<File>();
+
+        for(File f : core) {
+            if(f.exists() && f.isDirectory()) {
+                fileList.addAll(findFilesInFolder(f, "S", false));
+                fileList.addAll(findFilesInFolder(f, "c", false));
+                fileList.addAll(findFilesInFolder(f, "cpp", false));
+                fileList.addAll(findFilesInFolder(f, "cxx", false));
+                fileList.addAll(findFilesInFolder(f, "cc", false));
             }
         }
-
-        return true;
+        return fileList;
     }
 
     public boolean compileCore(ArrayList<File> core, String name) {
+        return compileCore(ctx, core, name);
+    }
+
+    public boolean compileCore(Context ctx, ArrayList<File> core, String name) {
         PropertyFile props = ctx.getMerged();
         String prefix = ctx.parseString(props.get("compiler.library.prefix","lib"));
         String suffix = ctx.parseString(props.get("compiler.library", "a"));
@@ -2713,42 +2960,144 @@ public class Sketch {
         File coreBuildFolder = new File(buildFolder, "libCore_" + name);
         coreBuildFolder.mkdirs();
 
-        ArrayList<File> fileList = new ArrayList<File>();
-
-        for(File f : core) {
-            if(f.exists() && f.isDirectory()) {
-                fileList.addAll(findFilesInFolder(f, "S", false));
-                fileList.addAll(findFilesInFolder(f, "c", false));
-                fileList.addAll(findFilesInFolder(f, "cpp", false));
-                fileList.addAll(findFilesInFolder(f, "cxx", false));
-                fileList.addAll(findFilesInFolder(f, "cc", false));
-            }
-        }
+        ArrayList<File> fileList = getCoreSourceFiles(core);
+        ArrayList<ArchiveMember> members = new ArrayList<ArchiveMember>();
 
         for(File f : fileList) {
-            if(f.lastModified() > archiveDate) {
-                File out = compileFile(f, coreBuildFolder);
+            String recipe = getCompileRecipe(f.getName());
+            String depKey = archive.getName() + ":" + f.getAbsolutePath();
+            if(needsCompile(ctx, f, recipe, archive.getParentFile(), depKey, archiveDate)) {
+                long startTime = System.currentTimeMillis();
+
+                // Each core folder gets its own object folder so files with the same
+                // name in two folders don't end up sharing an object.
+                File objFolder = coreBuildFolder;
+                if (core.size() > 1) {
+                    objFolder = new File(coreBuildFolder, Integer.toString(core.indexOf(f.getParentFile())));
+                }
+                File out = compileFile(ctx, f, coreBuildFolder, getObjectFile(ctx, objFolder, f.getParentFile(), f));
 
                 if(out == null) {
-                    coreBuildFolder.delete();
+                    discardObjects(members);
+                    Base.removeDir(coreBuildFolder);
                     return false;
                 }
 
-                ctx.set("object.name", out.getAbsolutePath());
-                boolean ok = (Boolean)ctx.executeKey("compile.ar");
+                members.add(new ArchiveMember(f, out, recipe, depKey, startTime));
+            }
+        }
 
-                if(!ok) {
-                    out.delete();
-                    coreBuildFolder.delete();
-                    return false;
+        boolean ok = archiveObjects(ctx, archive, members);
+        Base.removeDir(coreBuildFolder);
+        return ok;
+    }
+
+    // Work out the object file for a source file that goes into an archive.  The
+    // path of the source below its root folder is mirrored in the build folder
+    // (utility/foo.cpp becomes utility/foo.cpp.o) so two sources with the same name
+    // can never be mistaken for each other's object.
+
+    File getObjectFile(Context ctx, File buildFolder, File root, File src) {
+        String objExt = ctx.parseString(ctx.getMerged().get("compiler.object", "o"));
+        File folder = buildFolder;
+
+        String rootPath = root.getAbsolutePath() + File.separator;
+        String srcPath = src.getParentFile().getAbsolutePath() + File.separator;
+
+        if (srcPath.startsWith(rootPath)) {
+            String rel = srcPath.substring(rootPath.length());
+            if (rel.length() > 0) {
+                folder = new File(buildFolder, rel);
+            }
+        } else {
+            folder = new File(buildFolder, "_" + Integer.toHexString(srcPath.hashCode()));
+        }
+
+        folder.mkdirs();
+        return new File(folder, src.getName() + "." + objExt);
+    }
+
+    // An object waiting to be put into an archive, along with what we need to know
+    // to record its dependencies once it's in there.
+
+    class ArchiveMember {
+        File source;
+        File object;
+        String recipe;
+        String key;
+        long time;
+
+        ArchiveMember(File s, File o, String r, String k, long t) {
+            source = s;
+            object = o;
+            recipe = r;
+            key = k;
+            time = t;
+        }
+    }
+
+    // Put a set of freshly compiled objects into the archive ${library}.  If the core
+    // provides a compile.ar.batch recipe the objects are added in as few runs of
+    // the archiver as possible, passed as ${object.names}.  The list is split up to
+    // keep each command line under compile.ar.maxlength characters (default 8000).
+    // Without a batch recipe compile.ar is run for each object in turn.
+    //
+    // The objects (and their .d files) are removed afterwards.  Dependencies are only
+    // recorded once the objects are safely in the archive.
+
+    boolean archiveObjects(Context ctx, File archive, ArrayList<ArchiveMember> members) {
+        boolean ok = true;
+        PropertyFile props = ctx.getMerged();
+
+        if (members.size() > 0) {
+            if (props.getPlatformSpecific("compile.ar.batch") != null || props.get("compile.ar.batch.0") != null) {
+                int maxLength = props.getInteger("compile.ar.maxlength", 8000);
+                StringBuilder names = new StringBuilder();
+                for (ArchiveMember m : members) {
+                    String path = m.object.getAbsolutePath();
+                    if (names.length() > 0 && names.length() + path.length() + 2 > maxLength) {
+                        ctx.set("object.names", names.toString());
+                        if (!(Boolean)ctx.executeKey("compile.ar.batch")) {
+                            ok = false;
+                            break;
+                        }
+                        names = new StringBuilder();
+                    }
+                    if (names.length() > 0) {
+                        names.append("::");
+                    }
+                    names.append(path);
+                }
+                if (ok && names.length() > 0) {
+                    ctx.set("object.names", names.toString());
+                    ok = (Boolean)ctx.executeKey("compile.ar.batch");
                 }
+            } else {
+                for (ArchiveMember m : members) {
+                    ctx.set("object.name", m.object.getAbsolutePath());
+                    if (!(Boolean)ctx.executeKey("compile.ar")) {
+                        ok = false;
+                        break;
+                    }
+                }
+            }
+        }
 
-                out.delete();
+        if (ok) {
+            for (ArchiveMember m : members) {
+                recordDependencies(ctx, m.source, m.object, m.recipe, archive.getParentFile(), m.key, m.time);
             }
         }
 
-        coreBuildFolder.delete();
-        return true;
+        discardObjects(members);
+        return ok;
+    }
+
+    void discardObjects(ArrayList<ArchiveMember> members) {
+        for (ArchiveMember m : members) {
+            getDependencyFile(m.object).delete();
+            m.object.delete();
+        }
     }
 
     public void put(String k, String v) {
@@ -2760,6 +3109,10 @@ public class Sketch {
     }
 
     public String getArchiveName(Library lib) {
+        return getArchiveName(ctx, lib);
+    }
+
+    public String getArchiveName(Context ctx, Library lib) {
         PropertyFile props = ctx.getMerged();
         String prefix = ctx.parseString(props.get("compiler.library.prefix","lib"));
         String suffix = ctx.parseString(props.get("compiler.library", "a"));
@@ -2767,7 +3120,11 @@ public class Sketch {
     }
 
     public boolean compileLibrary(Library lib) {
-        File archive = getCacheFile(getArchiveName(lib));  //getCacheFile("lib" + lib.getName() + ".a");
+        return compileLibrary(ctx, lib);
+    }
+
+    public boolean compileLibrary(Context ctx, Library lib) {
+        File archive = getCacheFile(getArchiveName(ctx, lib));  //getCacheFile("lib" + lib.getName() + ".a");
         File utility = lib.getUtilityFolder();
         PropertyFile props = ctx.getMerged();
         if (!Base.isQuiet()) bullet2(lib.toString());
@@ -2791,38 +3148,29 @@ public class Sketch {
         int fileCount = fileList.size();
 
         int count = 0;
+        ArrayList<ArchiveMember> members = new ArrayList<ArchiveMember>();
 
         for(File f : fileList) {
-            if(f.lastModified() > archiveDate) {
-                File out = compileFile(f, libBuildFolder);
+            String recipe = getCompileRecipe(f.getName());
+            String depKey = archive.getName() + ":" + f.getAbsolutePath();
+            if(needsCompile(ctx, f, recipe, archive.getParentFile(), depKey, archiveDate)) {
+                long startTime = System.currentTimeMillis();
+                File out = compileFile(ctx, f, libBuildFolder, getObjectFile(ctx, libBuildFolder, lib.getFolder(), f));
 
                 if(out == null) {
-                    purgeLibrary(lib);
+                    discardObjects(members);
+                    purgeLibrary(ctx, lib);
                     lib.setCompiledPercent(0);
 
                     if(editor != null) {
                         editor.updateLibrariesTree();
                     }
 
-                    libBuildFolder.delete();
+                    Base.removeDir(libBuildFolder);
                     return false;
                 }
 
-                ctx.set("object.name", out.getAbsolutePath());
-                boolean ok = (Boolean)ctx.executeKey("compile.ar");
-
-                if(!ok) {
-                    purgeLibrary(lib);
-                    lib.setCompiledPercent(0);
-
-                    if(editor != null) {
-                        editor.updateLibrariesTree();
-                    }
-
-                    out.delete();
-                    libBuildFolder.delete();
-                    return false;
-                }
+                members.add(new ArchiveMember(f, out, recipe, depKey, startTime));
 
                 count++;
                 lib.setCompiledPercent(count * 100 / fileCount);
@@ -2830,9 +3178,19 @@ public class Sketch {
                 if(editor != null) {
                     editor.updateLibrariesTree();
                 }
+            }
+        }
+
+        if(!archiveObjects(ctx, archive, members)) {
+            purgeLibrary(ctx, lib);
+            lib.setCompiledPercent(0);
 
-                out.delete();
+            if(editor != null) {
+                editor.updateLibrariesTree();
             }
+
+            Base.removeDir(libBuildFolder);
+            return false;
         }
 
         if(editor != null) {
@@ -2846,12 +3204,12 @@ public class Sketch {
             editor.updateLibrariesTree();
         }
 
-        libBuildFolder.delete();
+        Base.removeDir(libBuildFolder);
 
         return true;
     }
 
-    private ArrayList<File> convertFiles(File dest, ArrayList<File> sources) {
+    private ArrayList<File> convertFiles(Context ctx, File dest, ArrayList<File> sources) {
         ArrayList<File> objectPaths = new ArrayList<File>();
         PropertyFile props = ctx.getMerged();
 
@@ -2892,30 +3250,234 @@ public class Sketch {
         return objectPaths;
     }
 
-    private ArrayList<File> compileFileList(File dest, ArrayList<File> sources, String key) {
-        ArrayList<File> objectPaths = new ArrayList<File>();
-        PropertyFile props = ctx.getMerged();
+    // Work out if a source file needs compiling.  The built date is the date of the
+    // object or archive it ends up in, or 0 if that doesn't exist.  With dependency
+    // tracking turned on, and a record of the object in the dependency database, the
+    // database decides.  Otherwise we just compare the dates.
 
-        ctx.set("build.path", dest.getAbsolutePath());
-        String objExt = ctx.parseString(props.get("compiler.object","o"));
+    boolean needsCompile(Context ctx, File src, String recipe, File dbFolder, String key, long builtDate) {
+        if (builtDate == 0) {
+            return true;
+        }
+        if (Preferences.getBoolean("compiler.dependencies")) {
+            DependencyDatabase db = DependencyDatabase.getDatabase(dbFolder);
+            if (db.hasEntry(key)) {
+                return db.isOutOfDate(key, getCompileCommand(ctx, recipe, src));
+            }
+        }
+        return src.lastModified() > builtDate;
+    }
+
+    // Run the recipe to compile a source file into an object.  If the shared object
+    // cache is turned on it is checked first, and the new object is added to it
+    // afterwards.
+
+    boolean runCompileRecipe(Context ctx, String recipe, File src, File obj) {
+        ObjectCache cache = null;
+        String manifestKey = null;
+        Map<String, String> paths = null;
+
+        if (Preferences.getBoolean("compiler.cache.enabled")) {
+            cache = ObjectCache.getCache();
+            paths = getCachePaths();
+            manifestKey = cache.getManifestKey(src, ObjectCache.localise(getCompilerIdentity(ctx) + "\n" + getCompileCommand(ctx, recipe, src), paths));
+            if (cache.fetch(manifestKey, obj, new File(getDependencyName(obj)), paths)) {
+                Debug.message("Object cache hit: " + src.getAbsolutePath());
+                return true;
+            }
+        }
+
+        Object res = ctx.executeKey(recipe);
+        boolean ok = (res instanceof Boolean) && (Boolean)res;
+
+        if (ok && cache != null && obj.exists()) {
+            cache.store(manifestKey, src, obj, getDependencyFile(obj), paths);
+        }
+        return ok;
+    }
+
+    // The paths that are only meaningful to this sketch, and the placeholders the
+    // object cache uses for them.  Longest first so a build folder inside the
+    // sketch folder gets swapped out before the sketch folder does.
+
+    Map<String, String> getCachePaths() {
+        LinkedHashMap<String, String> paths = new LinkedHashMap<String, String>();
+        String sketchPath = sketchFolder.getAbsolutePath();
+        String buildPath = buildFolder.getAbsolutePath();
+        if (buildPath.length() >= sketchPath.length()) {
+            paths.put("@BUILD@", buildPath);
+            paths.put("@SKETCH@", sketchPath);
+        } else {
+            paths.put("@SKETCH@", sketchPath);
+            paths.put("@BUILD@", buildPath);
+        }
+        return paths;
+    }
+
+    String getCompilerIdentity(Context ctx) {
+        Compiler c = ctx.getCompiler();
+        if (c == null) {
+            return "";
+        }
+        return c.getName() + " " + c.getVersion();
+    }
+
+    // Keep the object cache within its size limit and report how well it did.
+
+    void finishObjectCache() {
+        if (!Preferences.getBoolean("compiler.cache.enabled")) {
+            return;
+        }
+        ObjectCache cache = ObjectCache.getCache();
+        int size = Preferences.getInteger("compiler.cache.size");
+        if (size > 0) {
+            cache.trim((long)size * 1024L * 1024L);
+        }
+        Debug.message(cache.getStatistics());
+        if (!Base.isQuiet()) bullet2(cache.getStatistics());
+        cache.resetStatistics();
+    }
+
+    // Store the dependencies of a freshly compiled object in the dependency database.
+
+    void recordDependencies(Context ctx, File src, File obj, String recipe, File dbFolder, String key, long startTime) {
+        if (!Preferences.getBoolean("compiler.dependencies")) {
+            return;
+        }
+        DependencyDatabase db = DependencyDatabase.getDatabase(dbFolder);
+        db.update(key, getCompileCommand(ctx, recipe, src), startTime, src, getDependencyFile(obj));
+    }
+
+    // The .d file the compiler makes alongside an object.  GCC replaces the object
+    // extension with .d, but some cores may just tack .d on the end.
+
+    File getDependencyFile(File obj) {
+        String name = obj.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            File d = new File(obj.getParentFile(), name.substring(0, dot) + ".d");
+            if (d.exists()) {
+                return d;
+            }
+        }
+        return new File(obj.getParentFile(), name + ".d");
+    }
 
-        ctx.addDataStreamParser(new DataStreamParser() {
-            public String parseStreamMessage(Context ctx, String m) {
-                if (parseLineForWarningMessage(ctx, m)) {
+    String getDependencyName(File obj) {
+        String name = obj.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(obj.getParentFile(), name + ".d").getAbsolutePath();
+    }
+
+    // Get the effective command used to compile a file with a recipe.  The object
+    // and build paths are left out since they change from sketch to sketch, but
+    // everything else (flags, includes, compiler) goes in.
+
+    String getCompileCommand(Context ctx, String recipe, File src) {
+        if (recipe == null) {
+            return "";
+        }
+        Context cc = new Context(ctx);
+        cc.set("source.name", src.getAbsolutePath());
+        cc.set("object.name", "");
+        cc.set("build.path", "");
+        cc.set("dependency.name", "");
+        PropertyFile props = cc.getMerged();
+        String key = props.getPlatformSpecificKey(recipe);
+        StringBuilder sb = new StringBuilder();
+
+        String command = props.get(key);
+        if (command != null) {
+            sb.append(cc.parseString(command));
+        }
+
+        // Scripted recipes are just taken as they are, along with the flags that they
+        // are most likely to use.
+        PropertyFile script = props.getChildrenView(key);
+        if (script.size() > 0) {
+            for (String k : script.keySet()) {
+                sb.append("\n");
+                sb.append(k);
+                sb.append("=");
+                sb.append(script.get(k));
+            }
+            sb.append("\n");
+            sb.append(cc.parseString("${includes}::${option.flags}::${option.cflags}::${option.cppflags}"));
+        }
+        return sb.toString();
+    }
+
+    String getCompileRecipe(String fileName) {
+        if(fileName.endsWith(".cpp") || fileName.endsWith(".cxx") || fileName.endsWith(".cc")) {
+            return "compile.cpp";
+        }
+        if(fileName.endsWith(".c")) {
+            return "compile.c";
+        }
+        if(fileName.endsWith(".S")) {
+            return "compile.S";
+        }
+        return null;
+    }
+
+    // How many files to compile at once.  The --jobs command line option takes
+    // precedence over the preferences.  0 means one job per available CPU.
+
+    public int getCompileJobs() {
+        int jobs = 0;
+        if (Base.cli.isSet("jobs")) {
+            jobs = Base.cli.getInteger("jobs");
+        } else {
+            if (!Preferences.getBoolean("compiler.parallel")) {
+                return 1;
+            }
+            jobs = Preferences.getInteger("compiler.jobs");
+        }
+        if (jobs <= 0) {
+            jobs = Runtime.getRuntime().availableProcessors();
+        }
+        return jobs;
+    }
+
+    // Parser used for the compilation of files.  Warnings and errors get picked
+    // out and reported against the file they belong to.  The output lock stops
+    // the reports from different compile jobs getting mixed together.
+
+    final Object outputLock = new Object();
+
+    class CompileStreamParser implements DataStreamParser {
+        public String parseStreamMessage(Context c, String m) {
+            synchronized (outputLock) {
+                if (parseLineForWarningMessage(c, m)) {
                     return "";
                 }
-                return m;
             }
-            public String parseStreamError(Context ctx, String m) {
-                if (parseLineForErrorMessage(ctx, m)) {
+            return m;
+        }
+        public String parseStreamError(Context c, String m) {
+            synchronized (outputLock) {
+                if (parseLineForErrorMessage(c, m)) {
                     return "";
                 }
-                if (parseLineForWarningMessage(ctx, m)) {
+                if (parseLineForWarningMessage(c, m)) {
                     return "";
                 }
-                return m;
             }
-        });
+            return m;
+        }
+    }
+
+    private ArrayList<File> compileFileList(Context ctx, File dest, ArrayList<File> sources, String key) {
+        ArrayList<File> objectPaths = new ArrayList<File>();
+        PropertyFile props = ctx.getMerged();
+
+        ctx.set("build.path", dest.getAbsolutePath());
+        String objExt = ctx.parseString(props.get("compiler.object","o"));
+
+        ctx.addDataStreamParser(new CompileStreamParser());
 
         for(File file : sources) {
             String fileName = file.getName();
@@ -2925,12 +3487,16 @@ public class Sketch {
 
             ctx.set("source.name", file.getAbsolutePath());
             ctx.set("object.name", objectFile.getAbsolutePath());
+            ctx.set("dependency.name", getDependencyName(objectFile));
 
-            if(objectFile.exists() && objectFile.lastModified() > file.lastModified()) {
+            long builtDate = objectFile.exists() ? objectFile.lastModified() : 0;
+            if(!needsCompile(ctx, file, key, dest, objectFile.getAbsolutePath(), builtDate)) {
                 continue;
             }
 
-            if(!(Boolean)ctx.executeKey(key)) {
+            long startTime = System.currentTimeMillis();
+
+            if(!runCompileRecipe(ctx, key, file, objectFile)) {
                 ctx.removeDataStreamParser();
                 return null;
             }
@@ -2939,26 +3505,189 @@ public class Sketch {
                 ctx.removeDataStreamParser();
                 return null;
             }
+
+            recordDependencies(ctx, file, objectFile, key, dest, objectFile.getAbsolutePath(), startTime);
         }
         ctx.removeDataStreamParser();
         return objectPaths;
     }
 
-    private ArrayList<File> compileFiles(File dest, ArrayList<File> sSources, ArrayList<File> cSources, ArrayList<File> cppSources) {
+    // Contexts of the compile jobs that are currently running, so they can be
+    // killed if the compilation is aborted.
+
+    ArrayList<Context> compileJobs = new ArrayList<Context>();
+
+    // Where the parallel compiler gets its extra threads from while the sketch is
+    // being built as part of a build graph.  The graph's pool already holds the
+    // whole job budget, so using it stops the sketch doubling the number of jobs.
+
+    volatile Executor compileExecutor = null;
 
+    // Compile a set of files using a number of worker threads.  The map links each
+    // source file to the key used to compile it.  Each file is compiled in its own
+    // copy of the context so that source.name and object.name don't get trampled
+    // on by the other jobs.  The output of each job is held until it finishes so
+    // it comes out in one lump instead of interleaved with all the others.
+    //
+    // The calling thread counts as one of the workers.  The rest come from
+    // compileExecutor if there is one, otherwise from a pool of our own.  The
+    // workers take files from a shared queue, so any that don't get to start until
+    // the queue is empty just do nothing.
+
+    private ArrayList<File> compileFilesParallel(final Context ctx, File dest, LinkedHashMap<File, String> sources, int jobs) {
         ArrayList<File> objectPaths = new ArrayList<File>();
         PropertyFile props = ctx.getMerged();
 
         ctx.set("build.path", dest.getAbsolutePath());
         String objExt = ctx.parseString(props.get("compiler.object","o"));
 
-        ArrayList<File> sObjects = compileFileList(dest, sSources, "compile.S");
+        final LinkedHashMap<File, String> pending = new LinkedHashMap<File, String>();
+        final HashMap<File, File> objects = new HashMap<File, File>();
+
+        for (File file : sources.keySet()) {
+            File objectFile = new File(dest, file.getName() + "." + objExt);
+            objectPaths.add(objectFile);
+            objects.put(file, objectFile);
+
+            long builtDate = objectFile.exists() ? objectFile.lastModified() : 0;
+            if(!needsCompile(ctx, file, sources.get(file), dest, objectFile.getAbsolutePath(), builtDate)) {
+                continue;
+            }
+            pending.put(file, sources.get(file));
+        }
+
+        if (pending.size() == 0) {
+            return objectPaths;
+        }
+
+        if (jobs > pending.size()) {
+            jobs = pending.size();
+        }
+
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final File buildPath = dest;
+        final ConcurrentLinkedQueue<File> queue = new ConcurrentLinkedQueue<File>(pending.keySet());
+        final CountDownLatch done = new CountDownLatch(pending.size());
+
+        Runnable worker = new Runnable() {
+            public void run() {
+                File file;
+                while ((file = queue.poll()) != null) {
+                    try {
+                        if (failed.get() || terminateExecution) {
+                            failed.set(true);
+                        } else if (!compileFileJob(ctx, buildPath, file, objects.get(file), pending.get(file))) {
+                            failed.set(true);
+                        }
+                    } catch (Exception e) {
+                        Base.error(e);
+                        failed.set(true);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        Executor executor = compileExecutor;
+        ExecutorService pool = null;
+        if (executor == null && jobs > 1) {
+            pool = Executors.newFixedThreadPool(jobs - 1);
+            executor = pool;
+        }
+
+        for (int i = 1; i < jobs; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            failed.set(true);
+        }
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+
+        if (failed.get()) {
+            return null;
+        }
+
+        return objectPaths;
+    }
+
+    // Compile a single file in its own context.  Used by the parallel compiler.
+
+    boolean compileFileJob(Context ctx, File dest, File file, File objectFile, String key) {
+        Context job = new Context(ctx);
+        job.set("build.path", dest.getAbsolutePath());
+        job.set("source.name", file.getAbsolutePath());
+        job.set("object.name", objectFile.getAbsolutePath());
+        job.set("dependency.name", getDependencyName(objectFile));
+        job.addDataStreamParser(new CompileStreamParser());
+        job.startBuffer(true);
+
+        synchronized (compileJobs) {
+            compileJobs.add(job);
+        }
+
+        boolean ok = false;
+        long startTime = System.currentTimeMillis();
+        try {
+            ok = runCompileRecipe(job, key, file, objectFile) && objectFile.exists();
+            if (ok) {
+                recordDependencies(job, file, objectFile, key, dest, objectFile.getAbsolutePath(), startTime);
+            }
+        } finally {
+            synchronized (compileJobs) {
+                compileJobs.remove(job);
+            }
+            String output = job.endBuffer();
+            job.removeDataStreamParser();
+            if (!output.trim().equals("")) {
+                synchronized (outputLock) {
+                    if (ok) {
+                        ctx.messageStream(output);
+                    } else {
+                        ctx.errorStream(output);
+                    }
+                }
+            }
+        }
+        return ok;
+    }
+
+    private ArrayList<File> compileFiles(Context ctx, File dest, ArrayList<File> sSources, ArrayList<File> cSources, ArrayList<File> cppSources) {
+
+        ArrayList<File> objectPaths = new ArrayList<File>();
+        PropertyFile props = ctx.getMerged();
+
+        ctx.set("build.path", dest.getAbsolutePath());
+        String objExt = ctx.parseString(props.get("compiler.object","o"));
+
+        int jobs = getCompileJobs();
+        if (jobs > 1) {
+            LinkedHashMap<File, String> sources = new LinkedHashMap<File, String>();
+            for (File f : sSources) { sources.put(f, "compile.S"); }
+            for (File f : cSources) { sources.put(f, "compile.c"); }
+            for (File f : cppSources) { sources.put(f, "compile.cpp"); }
+            return compileFilesParallel(ctx, dest, sources, jobs);
+        }
+
+        ArrayList<File> sObjects = compileFileList(ctx, dest, sSources, "compile.S");
         if (sObjects == null) { return null; }
 
-        ArrayList<File> cObjects = compileFileList(dest, cSources, "compile.c");
+        ArrayList<File> cObjects = compileFileList(ctx, dest, cSources, "compile.c");
         if (cObjects == null) { return null; }
 
-        ArrayList<File> cppObjects = compileFileList(dest, cppSources, "compile.cpp");
+        ArrayList<File> cppObjects = compileFileList(ctx, dest, cppSources, "compile.cpp");
         if (cppObjects == null) { return null; }
 
         objectPaths.addAll(sObjects);
@@ -2968,7 +3697,7 @@ public class Sketch {
         return objectPaths;
     }
 
-    private ArrayList<File> compileSketch() {
+    private ArrayList<File> compileSketch(Context ctx) {
         ArrayList<File> sf = new ArrayList<File>();
 
         PropertyFile props = ctx.getMerged();
@@ -2980,7 +3709,7 @@ public class Sketch {
             if(obj.exists()) {
                 File buf = new File(buildFolder, "objects");
                 buf.mkdirs();
-                ArrayList<File> uf = convertFiles(buildFolder, findFilesInFolder(obj, null, true));
+                ArrayList<File> uf = convertFiles(ctx, buildFolder, findFilesInFolder(obj, null, true));
 
                 if(uf != null) {
                     sf.addAll(uf);
@@ -2989,6 +3718,7 @@ public class Sketch {
         }
 
         ArrayList<File> compiledFiles = compileFiles(
+                                            ctx,
                                             buildFolder,
                                             findFilesInFolder(buildFolder, "S", false),
                                             findFilesInFolder(buildFolder, "c", false),
@@ -3033,7 +3763,7 @@ public class Sketch {
                     }
                 }
 
-                sf.addAll(compileFiles(buildFolder, sFiles, cFiles, cppFiles));
+                sf.addAll(compileFiles(ctx, buildFolder, sFiles, cFiles, cppFiles));
             }
         }
 
@@ -3043,6 +3773,7 @@ public class Sketch {
             File buf = new File(buildFolder, "utility");
             buf.mkdirs();
             ArrayList<File> uf = compileFiles(
+                                ctx,
                                 buf,
                                 findFilesInFolder(suf, "S", true),
                                 findFilesInFolder(suf, "c", true),
@@ -3848,7 +4579,11 @@ public class Sketch {
     }
 
     public void purgeLibrary(Library lib) {
-        File arch = new File(getCacheFolder(), getArchiveName(lib));
+        purgeLibrary(ctx, lib);
+    }
+
+    public void purgeLibrary(Context ctx, Library lib) {
+        File arch = new File(getCacheFolder(), getArchiveName(ctx, lib));
         arch.delete();
     }
 
@@ -3872,6 +4607,7 @@ public class Sketch {
         ctx.set("option.ldflags", getFlags("ldflags"));
 
         compileLibrary(lib);
+        DependencyDatabase.saveAll();
     }
     public void renameFile(File old, File newFile) {
         if(sketchFiles.indexOf(old) >= 0) {
@@ -3960,6 +4696,11 @@ public class Sketch {
     public void requestTermination() {
         terminateExecution = true;
         ctx.killRunningProcess();
+        synchronized (compileJobs) {
+            for (Context job : compileJobs) {
+                job.killRunningProcess();
+            }
+        }
     }
 
     public boolean generateSarFile(File archiveFile) {
@@ -4150,15 +4891,23 @@ public class Sketch {
             return null;
         }
 
-        Pattern p = Pattern.compile("(?i)\\/\\/\\s*(TODO|NOTE|FIXME):\\s*(.*)$");
+        String content = getFileContent(f);
 
+        FileSymbols fs = symbolIndex.get(f);
+        if (fs != null && fs.length == content.length() && fs.hash == content.hashCode()) {
+            return fs.todo;
+        }
+
+        return findTodo(f, content);
+    }
+
+    ArrayList<TodoEntry> findTodo(File f, String content) {
         ArrayList<TodoEntry> found = new ArrayList<TodoEntry>();
 
-        String content = getFileContent(f);
         String[] lines = content.split("\n");
         int lineno = 0;
         for (String line : lines) {
-            Matcher m = p.matcher(line);
+            Matcher m = TODO_PATTERN.matcher(line);
             if (m.find()) {
                 String type = m.group(1).trim().toLowerCase();
                 String comment = m.group(2).trim();
@@ -4182,64 +4931,38 @@ public class Sketch {
     }
 
     public void addKeywordsFromFile(File f) {
-        String kwd = Base.getFileAsString(f);
-
-        String[] lines = kwd.split("\n");
-        Pattern p = Pattern.compile("^\\s*([^\\s]+)\\s+([^\\s]+)");
-        for (String line : lines) {
-            Matcher m = p.matcher(line);
-            if (m.find()) {
-                String name = m.group(1);
-                String type = m.group(2);
-                if (type.equals("LITERAL1")) {
-                    keywords.put(name, KeywordTypes.LITERAL1);
-                } else if (type.equals("LITERAL2")) {
-                    keywords.put(name, KeywordTypes.LITERAL2);
-                } else if (type.equals("LITERAL3")) {
-                    keywords.put(name, KeywordTypes.LITERAL3);
-                } else if (type.equals("KEYWORD1")) {
-                    keywords.put(name, KeywordTypes.KEYWORD1);
-                } else if (type.equals("KEYWORD2")) {
-                    keywords.put(name, KeywordTypes.KEYWORD2);
-                } else if (type.equals("KEYWORD3")) {
-                    keywords.put(name, KeywordTypes.KEYWORD3);
-                } else if (type.equals("OBJECT")) {
-                    keywords.put(name, KeywordTypes.OBJECT);
-                } else if (type.equals("VARIABLE")) {
-                    keywords.put(name, KeywordTypes.VARIABLE);
-                } else if (type.equals("FUNCTION")) {
-                    keywords.put(name, KeywordTypes.FUNCTION);
-                } else if (type.equals("DATATYPE")) {
-                    keywords.put(name, KeywordTypes.DATATYPE);
-                } else if (type.equals("RESERVED")) {
-                    keywords.put(name, KeywordTypes.RESERVED);
-                }
-            }
-        }
+        HashMap<String, Integer> kw = new HashMap<String, Integer>(keywords);
+        kw.putAll(KeywordCache.getKeywords(f));
+        keywords = kw;
     }
 
-
+    // Build the keyword list from the (cached) keyword tables.  The list is
+    // only replaced if it has actually changed, so the editors can tell if
+    // there is anything new for them just by looking at which map they get.
     public void updateKeywords() {
-        keywords.clear();
+        HashMap<String, Integer> kw = new HashMap<String, Integer>();
         if (selectedCompiler != null) {
-            addKeywordsFromFile(selectedCompiler.getKeywords());
+            kw.putAll(KeywordCache.getKeywords(selectedCompiler.getKeywords()));
         }
         if (selectedCore != null) {
-            addKeywordsFromFile(selectedCore.getKeywords());
+            kw.putAll(KeywordCache.getKeywords(selectedCore.getKeywords()));
         }
         if (selectedBoard != null) {
-            addKeywordsFromFile(selectedBoard.getKeywords());
+            kw.putAll(KeywordCache.getKeywords(selectedBoard.getKeywords()));
         }
         for (Library l : importedLibraries.values()) {
-            addKeywordsFromFile(l.getKeywords());
+            kw.putAll(KeywordCache.getKeywords(l.getKeywords()));
         }
         TreeSet<String> fl = getAllFunctionNames();
         for (String s : fl) {
             FunctionBookmark bm = new FunctionBookmark(null, 0, s);
 
-            keywords.put(bm.getName(), KeywordTypes.KEYWORD3);
+            kw.put(bm.getName(), KeywordTypes.KEYWORD3);
         }
 
+        if (!kw.equals(keywords)) {
+            keywords = kw;
+        }
     }
 
     public HashMap<String, Integer> getKeywords() {
@@ -4293,8 +5016,7 @@ public class Sketch {
     }
 
     public boolean parseLineForErrorMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.error"));
+        Pattern p = Pattern.compile(ctx.getMerged("compiler.error"));
         Matcher m = p.matcher(mess);
         if (m.find()) {
             File errorFile = new File(m.group(1));
@@ -4336,8 +5058,7 @@ public class Sketch {
     }
 
     public boolean parseLineForWarningMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.warning"));
+        Pattern p = Pattern.compile(ctx.getMerged("compiler.warning"));
         Matcher m = p.matcher(mess);
         if (m.find()) {
             File errorFile = new File(m.group(1));
@@ -4390,6 +5111,100 @@ public class Sketch {
         ctx.printParsed(e);
     }
 
+    // Find the libraries a file uses with the built in include scanner.  Quoted
+    // includes are looked for next to the file that includes them first, then
+    // everything else is looked up in the library index.  The headers of any
+    // libraries found are followed in turn so libraries that need other libraries
+    // are found too.  Only the file's own includes that can't be found anywhere are
+    // reported as missing - the rest are most likely system headers.
+    //
+    // Returns false if there was anything the scanner couldn't understand, in
+    // which case the preprocessor has to be used instead (huntForLibraries).  That
+    // includes a library being included inside a block that depends on a macro,
+    // such as picking a WiFi library by architecture, since only the preprocessor
+    // knows which one is wanted.  Nothing is added to the lists unless the scan
+    // worked.
+    public boolean scanForLibraries(File f, String content, HashMap<String, Library>foundLibs, ArrayList<String> missingLibs) {
+        ArrayList<IncludeScanner.Include> incs = IncludeScanner.getIncludes(content);
+        if (incs == null) {
+            return false;
+        }
+
+        HashSet<String> visited = new HashSet<String>();
+        visited.add(f.getAbsolutePath());
+
+        HashMap<String, Library> libs = new HashMap<String, Library>();
+        ArrayList<String> missing = new ArrayList<String>();
+
+        for (IncludeScanner.Include inc : incs) {
+            if (!followInclude(inc, f.getParentFile(), libs, visited)) {
+                if (missing.indexOf(inc.name) == -1) {
+                    missing.add(inc.name);
+                }
+            }
+        }
+
+        if (visited.contains(null)) {
+            return false;
+        }
+
+        foundLibs.putAll(libs);
+        for (String m : missing) {
+            if (missingLibs.indexOf(m) == -1) {
+                missingLibs.add(m);
+            }
+        }
+        return true;
+    }
+
+    // Work out where an include comes from and scan that in turn.  Returns false
+    // if it couldn't be found.  A null in the visited set means one of the files
+    // had an include the scanner couldn't work out, or a conditional include of a
+    // library.
+    boolean followInclude(IncludeScanner.Include inc, File dir, HashMap<String, Library>foundLibs, HashSet<String> visited) {
+        if (inc.quoted && dir != null) {
+            File local = new File(dir, inc.name);
+            if (local.isFile()) {
+                scanIncludedFile(local, foundLibs, visited);
+                return true;
+            }
+        }
+
+        Library lib = findLibrary(inc.name);
+        if (lib == null) {
+            return getFileByName(inc.name) != null;
+        }
+
+        if (inc.conditional) {
+            visited.add(null);
+            return true;
+        }
+
+        foundLibs.put(inc.name, lib);
+
+        File hdr = lib.getHeader(new File(inc.name).getName());
+        if (hdr != null) {
+            scanIncludedFile(hdr, foundLibs, visited);
+        }
+        return true;
+    }
+
+    void scanIncludedFile(File f, HashMap<String, Library>foundLibs, HashSet<String> visited) {
+        if (!visited.add(f.getAbsolutePath())) {
+            return;
+        }
+
+        ArrayList<IncludeScanner.Include> incs = IncludeScanner.getIncludes(f);
+        if (incs == null) {
+            visited.add(null);
+            return;
+        }
+
+        for (IncludeScanner.Include inc : incs) {
+            followInclude(inc, f.getParentFile(), foundLibs, visited);
+        }
+    }
+
     public boolean huntForLibraries(File f, HashMap<String, Library>foundLibs, ArrayList<String> missingLibs) {
 
         if (getBuildFolder() == null) {
@@ -4438,8 +5253,9 @@ public class Sketch {
                     if (entry.endsWith(".h")) {
                         Library lib = findLibrary(entry);
                         if (lib != null) {
-                            foundLibs.put(entry, lib);
-                            numberFoundThisPass++;
+                            if (foundLibs.put(entry, lib) == null) {
+                                numberFoundThisPass++;
+                            }
                         } else {
                             if(missingLibs.indexOf(entry) == -1) {
                                 missingLibs.add(entry);
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// A string with ${...} variables in it, parsed once into a tree of parts so that
+// it can be expanded over and over again without having to scan the string each
+// time.  Compiled templates are cached by their source string.
+//
+// A variable's name can itself contain variables (${a${b}}), in which case the
+// name is worked out first.  Names with a : in them are function variables
+// (${cmd:param}) and are passed to Context.runFunctionVariable.  Anything that
+// comes out of a variable is expanded again in case it has variables of its own,
+// which is what the old string scanning version of Context.parseString did.
+
+public class StringTemplate {
+
+    static final int MAX_CACHE = 10000;
+    static final int MAX_DEPTH = 64;
+
+    static ConcurrentHashMap<String, StringTemplate> cache = new ConcurrentHashMap<String, StringTemplate>();
+
+    static abstract class Part {
+        abstract void evaluate(Context ctx, StringBuilder out, int depth);
+    }
+
+    static class Literal extends Part {
+        String text;
+        Literal(String t) { text = t; }
+        void evaluate(Context ctx, StringBuilder out, int depth) {
+            out.append(text);
+        }
+    }
+
+    static class Variable extends Part {
+        Part[] name;
+
+        // If the name has no variables in it then everything about it is worked
+        // out up front.
+        String staticName = null;
+        String command = null;
+        String param = null;
+
+        Variable(ArrayList<Part> n) {
+            name = n.toArray(new Part[n.size()]);
+            if (name.length == 0) {
+                setName("");
+            } else if (name.length == 1 && name[0] instanceof Literal) {
+                setName(((Literal)name[0]).text);
+            }
+        }
+
+        void setName(String n) {
+            staticName = fixName(n);
+            int colon = staticName.indexOf(":");
+            if (colon > -1) {
+                command = staticName.substring(0, colon);
+                param = staticName.substring(colon + 1);
+            }
+        }
+
+        void evaluate(Context ctx, StringBuilder out, int depth) {
+            String n = staticName;
+            String cmd = command;
+            String par = param;
+
+            if (n == null) {
+                StringBuilder sb = new StringBuilder();
+                for (Part p : name) {
+                    p.evaluate(ctx, sb, depth);
+                }
+                n = fixName(sb.toString());
+                int colon = n.indexOf(":");
+                if (colon > -1) {
+                    cmd = n.substring(0, colon);
+                    par = n.substring(colon + 1);
+                }
+            }
+
+            String value;
+            if (cmd != null) {
+                value = ctx.runFunctionVariable(cmd, par);
+            } else {
+                value = ctx.getMerged(n);
+            }
+
+            if (value == null) {
+                return;
+            }
+
+            if (value.indexOf("${") == -1 || depth >= MAX_DEPTH) {
+                out.append(value);
+                return;
+            }
+
+            compile(value).evaluate(ctx, out, depth + 1);
+        }
+    }
+
+    // Compatability hack for old format roots
+    static String fixName(String n) {
+        if (n.equals("board.root")) { return "board:root"; }
+        if (n.equals("core.root")) { return "core:root"; }
+        if (n.equals("compiler.root")) { return "compiler:root"; }
+        return n;
+    }
+
+    Part[] parts;
+
+    StringTemplate(String in) {
+        ArrayList<Part> p = new ArrayList<Part>();
+        int[] pos = { 0 };
+        parse(in, pos, p, false);
+        parts = p.toArray(new Part[p.size()]);
+    }
+
+    // Parse from pos up to the end of the string, or up to the closing } if we are
+    // inside a variable name.  Returns false if a variable name wasn't closed.
+
+    static boolean parse(String in, int[] pos, ArrayList<Part> into, boolean inName) {
+        StringBuilder lit = new StringBuilder();
+        int len = in.length();
+
+        while (pos[0] < len) {
+            char c = in.charAt(pos[0]);
+
+            if (inName && c == '}') {
+                pos[0]++;
+                if (lit.length() > 0) {
+                    into.add(new Literal(lit.toString()));
+                }
+                return true;
+            }
+
+            if (c == '$' && pos[0] + 1 < len && in.charAt(pos[0] + 1) == '{') {
+                int varStart = pos[0];
+                pos[0] += 2;
+                ArrayList<Part> name = new ArrayList<Part>();
+                if (parse(in, pos, name, true)) {
+                    if (lit.length() > 0) {
+                        into.add(new Literal(lit.toString()));
+                        lit = new StringBuilder();
+                    }
+                    into.add(new Variable(name));
+                } else {
+                    // Never closed, so it's just text.
+                    lit.append(in.substring(varStart));
+                    pos[0] = len;
+                }
+                continue;
+            }
+
+            lit.append(c);
+            pos[0]++;
+        }
+
+        if (lit.length() > 0) {
+            into.add(new Literal(lit.toString()));
+        }
+        return !inName;
+    }
+
+    public static StringTemplate compile(String in) {
+        StringTemplate t = cache.get(in);
+        if (t == null) {
+            t = new StringTemplate(in);
+            if (cache.size() >= MAX_CACHE) {
+                cache.clear();
+            }
+            cache.put(in, t);
+        }
+        return t;
+    }
+
+    public void evaluate(Context ctx, StringBuilder out) {
+        evaluate(ctx, out, 0);
+    }
+
+    void evaluate(Context ctx, StringBuilder out, int depth) {
+        for (Part p : parts) {
+            p.evaluate(ctx, out, depth);
+        }
+    }
+
+    // Expand a string in the given context.
+
+    public static String expand(Context ctx, String in) {
+        StringBuilder out = new StringBuilder(in.length() + 64);
+        compile(in).evaluate(ctx, out, 0);
+        return out.toString();
+    }
+
+    // The string scanning expansion that Context.parseString used to do, kept
+    // here only so main() has something to compare against.
+
+    static String expandByScanning(Context ctx, String in) {
+        PropertyFile tokens = ctx.getMerged();
+        String out = in;
+
+        int iStart = out.indexOf("${");
+        if (iStart == -1) {
+            return out;
+        }
+
+        int iEnd = out.indexOf("}", iStart);
+        int iTest = out.indexOf("${", iStart + 1);
+        while ((iTest > -1) && (iTest < iEnd)) {
+            iStart = iTest;
+            iTest = out.indexOf("${", iStart + 1);
+        }
+
+        while (iStart != -1) {
+            String start = out.substring(0, iStart);
+            String end = out.substring(iEnd + 1);
+            String mid = fixName(out.substring(iStart + 2, iEnd));
+
+            if (mid.indexOf(":") > -1) {
+                mid = ctx.runFunctionVariable(mid.substring(0, mid.indexOf(":")), mid.substring(mid.indexOf(":") + 1));
+            } else {
+                mid = tokens.get(mid);
+                if (mid == null) {
+                    mid = "";
+                }
+            }
+
+            out = mid != null ? start + mid + end : start + end;
+
+            iStart = out.indexOf("${");
+            iEnd = out.indexOf("}", iStart);
+            iTest = out.indexOf("${", iStart + 1);
+            while ((iTest > -1) && (iTest < iEnd)) {
+                iStart = iTest;
+                iTest = out.indexOf("${", iStart + 1);
+            }
+        }
+
+        if (out != in) {
+            out = expandByScanning(ctx, out);
+        }
+        return out;
+    }
+
+    // Compare the old and new ways of expanding strings, using the values from the
+    // definition files (board.txt, core.txt ...) in the given folders.  All the
+    // keys are loaded into one context, and every value with a variable in it is
+    // expanded.  Values that use function variables (${core:root} and the like)
+    // are left out since they need the whole IDE loaded.
+    //
+    //   java -cp uecide.jar org.uecide.StringTemplate [-n passes] folder [folder...]
+
+    public static void main(String[] args) {
+        int count = 20;
+        ArrayList<File> files = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i < args.length - 1) {
+                count = Integer.parseInt(args[++i]);
+            } else {
+                PropertyFile.findDefinitionFiles(new File(args[i]), files);
+            }
+        }
+
+        if (files.size() == 0) {
+            System.out.println("Usage: StringTemplate [-n count] folder [folder...]");
+            return;
+        }
+
+        Context ctx = new Context();
+        ArrayList<String> values = new ArrayList<String>();
+        for (File f : files) {
+            TreeMap<String, String> props = new PropertyFile(f).getProperties();
+            for (Map.Entry<String, String> e : props.entrySet()) {
+                ctx.set(e.getKey(), e.getValue());
+                String v = e.getValue();
+                if (v.indexOf("${") > -1 && v.replaceAll("\\$\\{[^}]*:", "").length() == v.length()) {
+                    values.add(v);
+                }
+            }
+        }
+
+        if (values.size() == 0) {
+            System.out.println("No values with variables found");
+            return;
+        }
+
+        int different = 0;
+        for (String v : values) {
+            if (!expandByScanning(ctx, v).equals(expand(ctx, v))) {
+                different++;
+            }
+        }
+
+        long oldTime = 0;
+        long newTime = 0;
+        for (int pass = 0; pass < count; pass++) {
+            long start = System.nanoTime();
+            for (String v : values) {
+                expandByScanning(ctx, v);
+            }
+            long mid = System.nanoTime();
+            for (String v : values) {
+                expand(ctx, v);
+            }
+            long end = System.nanoTime();
+
+            // The first pass just warms things up.
+            if (pass > 0) {
+                oldTime += mid - start;
+                newTime += end - mid;
+            }
+        }
+
+        int timed = Math.max(1, count - 1);
+        System.out.println(String.format("%d files, %d values: old %.2fms, new %.2fms per pass (%.2fx), %d expanded differently",
+            files.size(), values.size(), oldTime / 1000000.0 / timed, newTime / 1000000.0 / timed,
+            newTime == 0 ? 0 : (double)oldTime / newTime, different));
+    }
+}
@@ -30,30 +30,66 @@
 
 package org.uecide;
 
-public class TreeUpdaterService extends Service {
+import java.io.*;
+import java.util.*;
+
+// Refreshes the function lists, keywords and trees of the open editors.  The
+// work is only done for an editor if its text has changed, or the file watcher
+// has seen something change in the sketch, library or hardware folders.
+
+public class TreeUpdaterService extends Service implements FileWatcher.Listener {
+
+    volatile boolean changed = true;
+    HashMap<Editor, Integer> signatures = new HashMap<Editor, Integer>();
+
     public TreeUpdaterService() {
         setName("Tree Updater");
         setInterval(15000);
     }
 
     public void setup() {
+        FileWatcher.addListener(this);
     }
 
     public void cleanup() {
+        FileWatcher.removeListener(this);
+        signatures.clear();
+        changed = true;
+    }
+
+    public void filesChanged(int type, Set<File> files) {
+        changed = true;
     }
 
     public void loop() {
+        boolean all = changed || !FileWatcher.isAvailable();
+        changed = false;
+
+        HashMap<Editor, Integer> seen = new HashMap<Editor, Integer>();
+
         synchronized (Editor.editorList) {
             for (Editor e : Editor.editorList) {
-                if (!e.compilerRunning()) {
-                    e.loadedSketch.findAllFunctions();
-                    e.loadedSketch.updateKeywords();
-                    e.loadedSketch.updateLibraryList();
-                    e.updateKeywords();
-                    e.updateLibrariesTree();
-                    e.updateSourceTree();
+                if (e.compilerRunning()) {
+                    changed = true;
+                    continue;
+                }
+
+                Integer sig = e.getContentSignature();
+                seen.put(e, sig);
+
+                if (!all && sig.equals(signatures.get(e))) {
+                    continue;
                 }
+
+                e.loadedSketch.findAllFunctions();
+                e.loadedSketch.updateKeywords();
+                e.loadedSketch.updateLibraryList();
+                e.updateKeywords();
+                e.updateLibrariesTree();
+                e.updateSourceTree();
             }
         }
+
+        signatures = seen;
     }
 }
@@ -89,7 +89,7 @@ public class UObject implements Comparable {
                     return;
                 }
 
-                _properties = new PropertyFile(_configFile);
+                _properties = DefinitionCache.getCache().load(_configFile);
                 updateSources();
                 _name = get("name");
 
@@ -256,20 +256,34 @@ public class UObject implements Comparable {
         return false;
     }
 
-    public ImageIcon getIcon(int size) {
-        String path = get("icon." + size);
+    // Icons are kept once they have been loaded, since the menus ask for them
+    // every time they are built.  They are loaded again if the properties change.
+    HashMap<Integer, ImageIcon> icons = new HashMap<Integer, ImageIcon>();
+    long iconsVersion = -1;
 
-        if(path  == null) {
-            return null;
+    public synchronized ImageIcon getIcon(int size) {
+        if (_properties.getVersion() != iconsVersion) {
+            icons.clear();
+            iconsVersion = _properties.getVersion();
         }
 
-        File f = new File(getFolder(), path);
+        if (icons.containsKey(size)) {
+            return icons.get(size);
+        }
 
-        if(!f.exists()) {
-            return null;
+        ImageIcon icon = null;
+        String path = get("icon." + size);
+
+        if(path != null) {
+            File f = new File(getFolder(), path);
+
+            if(f.exists()) {
+                icon = new ImageIcon(f.getAbsolutePath());
+            }
         }
 
-        return new ImageIcon(f.getAbsolutePath());
+        icons.put(size, icon);
+        return icon;
     }
 
 
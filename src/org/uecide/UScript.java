@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ * 
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+
+// A UECIDE script (the key.0, key.1, ... lists of commands) compiled into a
+// list of instructions.  The lines are looked up, trimmed and picked apart just
+// once, and goto targets and set:: assignments that don't use any variables are
+// worked out in advance.  Anything with a ${...} in it is still expanded each
+// time it is run, exactly as before.
+//
+// Lines beyond the first unbroken run from 0 (which can only be reached with a
+// goto) are compiled the first time they are needed.
+
+public class UScript {
+
+    static final int COMMAND = 0;
+    static final int GOTO = 1;
+    static final int SET = 2;
+    static final int FAIL = 3;
+    static final int END = 4;
+
+    static final int BAD_TARGET = Integer.MIN_VALUE;
+
+    static class Instruction {
+        int type = COMMAND;
+        String key;             // The key of the line, for running it as a command
+        String text;            // The line itself, for when it has to be parsed at run time
+        boolean dynamic;        // Has variables in it
+        int target = BAD_TARGET; // Resolved goto target
+        String setKey;
+        String setValue;
+    }
+
+    String key;
+    PropertyFile props;
+    PropertyFile script;
+    Instruction[] lines;
+    HashMap<Integer, Instruction> extraLines = new HashMap<Integer, Instruction>();
+
+    boolean hasFail;
+    boolean hasEnd;
+    String failKey;
+    String endKey;
+
+    UScript(PropertyFile p, String k) {
+        props = p;
+        key = k;
+        script = props.getChildrenView(key);
+
+        ArrayList<Instruction> list = new ArrayList<Instruction>();
+        while (script.keyExists(Integer.toString(list.size()))) {
+            list.add(compileLine(list.size()));
+        }
+        lines = list.toArray(new Instruction[list.size()]);
+
+        hasFail = script.keyExists("fail");
+        hasEnd = script.keyExists("end");
+        failKey = key + ".fail";
+        endKey = key + ".end";
+    }
+
+    Instruction compileLine(int lineno) {
+        Instruction ins = new Instruction();
+        ins.key = key + "." + lineno;
+
+        String ld = props.get(props.keyForOS(ins.key));
+        if (ld == null) {
+            return ins;
+        }
+
+        ld = ld.trim();
+        ins.text = ld;
+        ins.dynamic = ld.indexOf("${") != -1;
+
+        if (ld.startsWith("goto::")) {
+            ins.type = GOTO;
+            if (!ins.dynamic) {
+                ins.target = parseTarget(ld);
+            }
+        } else if (ld.startsWith("set::")) {
+            ins.type = SET;
+            if (!ins.dynamic) {
+                splitSet(ins, ld);
+            }
+        } else if (ld.equals("fail")) {
+            ins.type = FAIL;
+        } else if (ld.equals("end")) {
+            ins.type = END;
+        }
+
+        return ins;
+    }
+
+    static int parseTarget(String ld) {
+        try {
+            return Integer.parseInt(ld.substring(6));
+        } catch (Exception e) {
+            return BAD_TARGET;
+        }
+    }
+
+    static boolean splitSet(Instruction ins, String ld) {
+        String param = ld.substring(5);
+        int epos = param.indexOf("=");
+        if (epos == -1) {
+            return false;
+        }
+        ins.setKey = param.substring(0, epos);
+        ins.setValue = param.substring(epos + 1);
+        return true;
+    }
+
+    Instruction getLine(int lineno) {
+        if (lineno < 0) {
+            return null;
+        }
+        if (lineno < lines.length) {
+            return lines[lineno];
+        }
+
+        synchronized (extraLines) {
+            if (extraLines.containsKey(lineno)) {
+                return extraLines.get(lineno);
+            }
+            Instruction ins = null;
+            if (script.keyExists(Integer.toString(lineno))) {
+                ins = compileLine(lineno);
+            }
+            extraLines.put(lineno, ins);
+            return ins;
+        }
+    }
+
+    Object fail(Context ctx) {
+        if (hasFail) {
+            ctx.executeKey(failKey);
+        }
+        return false;
+    }
+
+    Object syntaxError(Context ctx, int lineno, String ld) {
+        ctx.error(Base.i18n.string("err.syntax", key, lineno));
+        ctx.error(ld);
+        return fail(ctx);
+    }
+
+    public Object run(Context ctx) {
+        Object res = false;
+        int lineno = 0;
+
+        Instruction ins;
+        while ((ins = getLine(lineno)) != null) {
+            switch (ins.type) {
+                case GOTO: {
+                    int target = ins.target;
+                    String ld = ins.text;
+                    if (ins.dynamic) {
+                        ld = ctx.parseString(ld);
+                        target = parseTarget(ld);
+                    }
+                    if (target == BAD_TARGET) {
+                        return syntaxError(ctx, lineno, ld);
+                    }
+                    lineno = target;
+                    continue;
+                }
+
+                case SET: {
+                    String k = ins.setKey;
+                    String v = ins.setValue;
+                    String ld = ins.text;
+                    if (ins.dynamic) {
+                        ld = ctx.parseString(ld);
+                        Instruction parsed = new Instruction();
+                        if (splitSet(parsed, ld)) {
+                            k = parsed.setKey;
+                            v = parsed.setValue;
+                        } else {
+                            k = null;
+                        }
+                    }
+                    if (k == null) {
+                        return syntaxError(ctx, lineno, ld);
+                    }
+                    ctx.settings.set(k, v);
+                    lineno++;
+                    continue;
+                }
+
+                case FAIL:
+                    return fail(ctx);
+
+                case END:
+                    if (hasEnd) {
+                        res = ctx.executeKey(endKey);
+                    }
+                    return res;
+            }
+
+            res = ctx.executeKey(ins.key);
+
+            if (res instanceof Boolean) {
+                if ((Boolean)res == false) {
+                    return fail(ctx);
+                }
+            }
+
+            lineno++;
+        }
+
+        if (hasEnd) {
+            res = ctx.executeKey(endKey);
+        }
+
+        return res;
+    }
+}